@@ -0,0 +1,62 @@
+package scribble;
+
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The steps of cut and paste, without the system clipboard: taking the
+ * snapshot that copy puts on the clipboard, turning it into the byte
+ * stream other programs get and back, and adding pasted lines to a
+ * scribble together with their index entries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ClipboardBenchmark {
+  @Param({ "1000", "100000", "1000000" })
+  public int segments;
+
+  SegmentStore scribble;
+  Scribble.ScribbleSelection selection;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    scribble = Traces.scribble(segments, 42);
+    selection = new Scribble.ScribbleSelection(scribble.snapshot());
+  }
+
+  @Benchmark
+  public SegmentStore copy() {
+    return scribble.snapshot();                // What copy() does.
+  }
+
+  @Benchmark
+  public SegmentStore stream()
+       throws IOException, UnsupportedFlavorException {
+    return Scribble.readStream((InputStream)
+        selection.getTransferData(Scribble.streamFlavor));
+  }
+
+  @Benchmark
+  public SegmentIndex paste() {
+    SegmentStore lines = new ColumnarSegmentStore();
+    SegmentIndex index = new SegmentIndex();
+    lines.addAll(scribble);                    // What paste() does, less
+    index.addRange(lines, 0, lines.pointCount()); // the simplification.
+    return index;
+  }
+}
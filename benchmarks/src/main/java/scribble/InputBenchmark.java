@@ -0,0 +1,74 @@
+package scribble;
+
+import java.awt.EventQueue;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * How long the event dispatch thread spends on one stroke: the press,
+ * the drags and the release, replayed from a recorded trace on top of a
+ * scribble of the given size, including simplifying, indexing and (with
+ * retained rendering) drawing the stroke into the image.  The stroke is
+ * undone afterwards so that every call starts from the same scribble.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class InputBenchmark {
+  @Param({ "1000", "100000", "1000000" })
+  public int segments;
+
+  @Param({ "false", "true" })
+  public boolean retained;
+
+  Scribble scribble;
+  MouseEvent[] events;                         // Press, drags, release.
+  Runnable replay;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    scribble = new Scribble(null, Traces.WIDTH, Traces.HEIGHT,
+        new ScribbleDocument(Traces.scribble(segments, 42)));
+    scribble.setSize(Traces.WIDTH, Traces.HEIGHT);
+    scribble.setRetained(retained);
+    int[] xy = Traces.drag(Traces.STROKE, 7);
+    int n = xy.length / 2;
+    events = new MouseEvent[n + 1];
+    for(int i = 0; i < n; i++)
+      events[i] = event(i == 0 ? MouseEvent.MOUSE_PRESSED
+                               : MouseEvent.MOUSE_DRAGGED, xy[2*i], xy[2*i+1]);
+    events[n] = event(MouseEvent.MOUSE_RELEASED, xy[2*n-2], xy[2*n-1]);
+    replay = new Runnable() {
+      public void run() {
+        scribble.mousePressed(events[0]);
+        for(int i = 1; i < events.length - 1; i++)
+          scribble.mouseDragged(events[i]);
+        scribble.mouseReleased(events[events.length - 1]);
+        scribble.undo();                       // Back to where we started.
+      }
+    };
+  }
+
+  MouseEvent event(int id, int x, int y) {
+    return new MouseEvent(scribble, id, 0, InputEvent.BUTTON1_DOWN_MASK,
+                          x, y, 1, false, MouseEvent.BUTTON1);
+  }
+
+  @Benchmark
+  public void stroke() throws Exception {
+    EventQueue.invokeAndWait(replay);          // Where Swing would run it.
+  }
+}
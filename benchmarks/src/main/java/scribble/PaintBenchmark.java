@@ -0,0 +1,67 @@
+package scribble;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * How long it takes to paint a scribble: all of it, as after the window
+ * was uncovered, and a small area, as while a stroke is being drawn, each
+ * with and without the retained image.  The painting goes to an image, so
+ * no screen is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PaintBenchmark {
+  @Param({ "1000", "100000", "1000000" })
+  public int segments;
+
+  @Param({ "false", "true" })
+  public boolean retained;                     // Paint from the image?
+
+  Scribble scribble;
+  BufferedImage image;
+  Graphics2D g;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    scribble = new Scribble(null, Traces.WIDTH, Traces.HEIGHT,
+        new ScribbleDocument(Traces.scribble(segments, 42)));
+    scribble.setSize(Traces.WIDTH, Traces.HEIGHT);
+    scribble.setRetained(retained);            // Built by the first paint.
+    image = new BufferedImage(Traces.WIDTH, Traces.HEIGHT,
+                              BufferedImage.TYPE_INT_RGB);
+    g = image.createGraphics();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() { g.dispose(); }
+
+  @Benchmark
+  public BufferedImage paintAll() {
+    g.setClip(0, 0, Traces.WIDTH, Traces.HEIGHT);
+    scribble.paint(g);
+    return image;
+  }
+
+  @Benchmark
+  public BufferedImage paintSmall() {
+    g.setClip(1000, 1000, 32, 32);             // About one frame of input.
+    scribble.paint(g);
+    return image;
+  }
+}
@@ -0,0 +1,55 @@
+package scribble;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * How long it takes to encode and decode a scribble in the file format,
+ * with and without compression.  The bytes stay in memory, so the disk
+ * does not enter into it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PersistenceBenchmark {
+  @Param({ "1000", "100000", "1000000" })
+  public int segments;
+
+  @Param({ "false", "true" })
+  public boolean compress;
+
+  SegmentStore scribble;
+  byte[] encoded;                              // The scribble, written.
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    scribble = Traces.scribble(segments, 42);
+    encoded = write().toByteArray();
+  }
+
+  @Benchmark
+  public ByteArrayOutputStream write() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ScribbleFile.write(scribble, out, compress);
+    return out;
+  }
+
+  @Benchmark
+  public int read() throws IOException {
+    return ScribbleFile.read(ByteBuffer.wrap(encoded)).pointCount();
+  }
+}
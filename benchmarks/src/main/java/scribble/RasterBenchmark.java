@@ -0,0 +1,66 @@
+package scribble;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A repaint of the whole canvas, as after loading a drawing: by Java2D
+ * polylines (threads = 0), and by the ParallelRasterizer cutting the work
+ * into bands for the given number of threads.  The pool never has more
+ * threads than there are processors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RasterBenchmark {
+  @Param({ "100000", "1000000" })
+  public int segments;
+
+  @Param({ "0", "1", "2", "4", "8" })
+  public int threads;
+
+  SegmentStore lines;
+  IntList all;
+  PolylineRenderer renderer;
+  ParallelRasterizer raster;
+  BufferedImage image;
+  Graphics2D g;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    lines = Traces.scribble(segments, 42);
+    SegmentIndex index = new SegmentIndex();
+    index.addRange(lines, 0, lines.pointCount());
+    image = new BufferedImage(Traces.WIDTH, Traces.HEIGHT,
+                              BufferedImage.TYPE_INT_ARGB);
+    g = image.createGraphics();
+    g.setClip(0, 0, Traces.WIDTH, Traces.HEIGHT);
+    all = index.query(lines, g.getClipBounds());
+    renderer = new PolylineRenderer();
+    raster = threads == 0 ? null : new ParallelRasterizer(threads);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() { g.dispose(); }
+
+  @Benchmark
+  public BufferedImage repaintAll() {
+    if (raster == null || !raster.draw(g, lines, all))
+      renderer.drawSome(g, lines, all);
+    return image;
+  }
+}
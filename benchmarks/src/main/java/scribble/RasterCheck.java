@@ -0,0 +1,91 @@
+package scribble;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Checks that the ParallelRasterizer draws what PolylineRenderer does,
+ * pixel for pixel: random polylines in random opaque colors, drawn both
+ * ways into BufferedImages under random whole-pixel translations, clips
+ * and thread counts, and the images compared.  Not a benchmark; run it
+ * from the benchmarks jar with
+ *
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar scribble.RasterCheck \
+ *        [trials [seed]]
+ * </pre>
+ *
+ * It exits with 1 if any pixel differs.
+ */
+public class RasterCheck {
+  static final int SIZE = 512;             // Of the images.
+
+  public static void main(String[] args) {
+    int trials = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+    Random r = new Random(seed);
+    int failed = 0;
+    long pixels = 0;
+    for(int t = 0; t < trials; t++) {
+      int wrong = trial(r, t);
+      if (wrong > 0) {
+        failed++;
+        System.out.println("trial " + t + ": " + wrong + " pixels differ");
+      }
+      pixels += (long) SIZE * SIZE;
+    }
+    System.out.println(trials + " trials, " + pixels + " pixels, "
+                       + failed + " trials differ");
+    System.exit(failed > 0 ? 1 : 0);
+  }
+
+  /** Draw one random drawing both ways, and count the pixels that differ. */
+  static int trial(Random r, int t) {
+    ColumnarSegmentStore s = new ColumnarSegmentStore();
+    int lines = 1 + r.nextInt(200);
+    int reach = 16 + r.nextInt(2 * SIZE);          // Short to off-image long.
+    Color[] pens = new Color[16];                  // Fewer than a palette
+    for(int k = 0; k < pens.length; k++)           // holds, all opaque.
+      pens[k] = new Color(r.nextInt(0x1000000));
+    for(int k = 0; k < lines; k++) {
+      Color c = pens[r.nextInt(pens.length)];
+      s.moveTo(r.nextInt(SIZE * 2) - SIZE / 2, r.nextInt(SIZE * 2) - SIZE / 2,
+               c, 1);
+      for(int n = 1 + r.nextInt(30); n > 0; n--) {
+        int x = s.x(s.pointCount() - 1), y = s.y(s.pointCount() - 1);
+        s.lineTo(x + r.nextInt(reach) - reach / 2,
+                 y + r.nextInt(reach) - reach / 2);
+      }
+    }
+    SegmentIndex index = new SegmentIndex();
+    index.addRange(s, 0, s.pointCount());
+    int dx = r.nextInt(SIZE) - SIZE / 2, dy = r.nextInt(SIZE) - SIZE / 2;
+    int cx = r.nextInt(SIZE / 2), cy = r.nextInt(SIZE / 2);
+    Rectangle clip = new Rectangle(cx, cy, 1 + r.nextInt(SIZE - cx),
+                                   1 + r.nextInt(SIZE - cy));
+    ParallelRasterizer raster = new ParallelRasterizer(1 + t % 8);
+
+    BufferedImage expected = image(), actual = image();
+    Graphics2D e = expected.createGraphics(), a = actual.createGraphics();
+    e.translate(dx, dy); a.translate(dx, dy);
+    e.clip(clip); a.clip(clip);                     // In drawing coordinates.
+    IntList some = index.query(s, e.getClipBounds());
+    new PolylineRenderer().drawSome(e, s, some);
+    if (!raster.draw(a, s, some))
+      throw new IllegalStateException("the rasterizer declined trial " + t);
+    e.dispose(); a.dispose();
+
+    int[] p = expected.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+    int[] q = actual.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+    int wrong = 0;
+    for(int i = 0; i < p.length; i++) if (p[i] != q[i]) wrong++;
+    return wrong;
+  }
+
+  static BufferedImage image() {
+    return new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+  }
+}
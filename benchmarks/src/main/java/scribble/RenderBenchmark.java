@@ -0,0 +1,94 @@
+package scribble;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Antialiased drawing from cached paths (PathRenderer) against plain
+ * polylines (PolylineRenderer), for thin and wide pens: the whole
+ * drawing, a small area, the whole drawing zoomed out to 1/8, where the
+ * paths use a simpler level of detail, and building the paths afresh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+  @Param({ "10000", "100000" })
+  public int segments;
+
+  @Param({ "false", "true" })
+  public boolean antialias;                    // PathRenderer?
+
+  @Param({ "1", "4" })
+  public float width;
+
+  SegmentStore lines;
+  SegmentIndex index;
+  PolylineRenderer renderer;
+  BufferedImage image;
+  Graphics2D g;
+  IntList small;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    lines = Traces.scribble(segments, 42, width);
+    index = new SegmentIndex();
+    index.addRange(lines, 0, lines.pointCount());
+    renderer = antialias ? new PathRenderer() : new PolylineRenderer();
+    image = new BufferedImage(Traces.WIDTH, Traces.HEIGHT,
+                              BufferedImage.TYPE_INT_RGB);
+    g = image.createGraphics();
+    small = index.query(lines, new Rectangle(1000, 1000, 32, 32));
+    renderer.drawRange(g, lines, 0, lines.pointCount());  // Build the paths.
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() { g.dispose(); }
+
+  @Benchmark
+  public BufferedImage drawAll() {
+    g.setClip(0, 0, Traces.WIDTH, Traces.HEIGHT);
+    renderer.drawRange(g, lines, 0, lines.pointCount());
+    return image;
+  }
+
+  @Benchmark
+  public BufferedImage drawSmall() {
+    g.setClip(1000, 1000, 32, 32);             // About one frame of input.
+    renderer.drawSome(g, lines, small);
+    return image;
+  }
+
+  @Benchmark
+  public BufferedImage drawZoomedOut() {
+    Graphics2D z = (Graphics2D) g.create();
+    z.setClip(0, 0, Traces.WIDTH / 8, Traces.HEIGHT / 8);
+    z.scale(0.125, 0.125);
+    renderer.drawRange(z, lines, 0, lines.pointCount());
+    z.dispose();
+    return image;
+  }
+
+  @Benchmark
+  public BufferedImage drawCold() {            // As after loading a file.
+    PolylineRenderer r = antialias ? new PathRenderer() : new PolylineRenderer();
+    g.setClip(0, 0, Traces.WIDTH, Traces.HEIGHT);
+    r.drawRange(g, lines, 0, lines.pointCount());
+    return image;
+  }
+}
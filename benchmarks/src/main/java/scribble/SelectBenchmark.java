@@ -0,0 +1,81 @@
+package scribble;
+
+import java.awt.Rectangle;
+import java.awt.geom.Line2D;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * What the selection tools cost: a click finding the stroke under it,
+ * through the StrokeQuery and by looking at every segment, a rectangle
+ * selection, and erasing a stroke halfway through the drawing and
+ * undoing that again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SelectBenchmark {
+  static final double TOLERANCE = 4;
+
+  @Param({ "100000", "1000000" })
+  public int segments;
+
+  ScribbleDocument document;
+  Random random;
+  IntList middle;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    document = new ScribbleDocument(Traces.scribble(segments, 42));
+    random = new Random(7);
+    middle = new IntList();
+    StrokeQuery q = document.state().strokes();
+    middle.add(q.strokeStart(document.state().lines.pointCount() / 2));
+  }
+
+  @Benchmark
+  public int hitTest() {
+    return document.state().strokes().nearest(
+        random.nextInt(Traces.WIDTH), random.nextInt(Traces.HEIGHT), TOLERANCE);
+  }
+
+  @Benchmark
+  public int hitTestScan() {
+    SegmentStore s = document.state().lines;
+    double x = random.nextInt(Traces.WIDTH), y = random.nextInt(Traces.HEIGHT);
+    double best = TOLERANCE;
+    int found = -1;
+    for(int i = 1; i < s.pointCount(); i++) {
+      if (s.isMove(i)) continue;
+      double d = Line2D.ptSegDist(s.x(i-1), s.y(i-1), s.x(i), s.y(i), x, y)
+                 - s.width(i) / 2;
+      if (d <= best) { best = d; found = i; }
+    }
+    return found;
+  }
+
+  @Benchmark
+  public IntList selectRectangle() {
+    return document.state().strokes().inside(new Rectangle(
+        random.nextInt(Traces.WIDTH - 256), random.nextInt(Traces.HEIGHT - 256),
+        256, 256));
+  }
+
+  @Benchmark
+  public boolean eraseAndUndo() {
+    document.erase(middle, false);
+    return document.undo();
+  }
+}
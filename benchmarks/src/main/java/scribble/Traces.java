@@ -0,0 +1,52 @@
+package scribble;
+
+import java.awt.Color;
+import java.util.Random;
+
+/**
+ * Makes the drawings the benchmarks work on: random walks that look like
+ * hand-drawn strokes, always the same for the same size and seed, so that
+ * runs can be compared with each other.
+ */
+class Traces {
+  static final int WIDTH = 2048, HEIGHT = 2048;    // The canvas they fill.
+  static final int STROKE = 200;                   // Segments per stroke.
+  static final Color[] COLORS = {
+    Color.black, Color.red, Color.green, Color.blue };
+
+  /** A drag trace: n+1 points as x0, y0, x1, y1, ... */
+  static int[] drag(int n, long seed) {
+    Random r = new Random(seed);
+    int[] xy = new int[2 * (n + 1)];
+    int x = r.nextInt(WIDTH), y = r.nextInt(HEIGHT);
+    int dx = 0, dy = 0;
+    for(int i = 0; i <= n; i++) {
+      xy[2 * i] = x;
+      xy[2 * i + 1] = y;
+      dx = clamp(dx + r.nextInt(5) - 2, -6, 6);     // The pen turns slowly,
+      dy = clamp(dy + r.nextInt(5) - 2, -6, 6);     // like a hand does.
+      x = clamp(x + dx, 0, WIDTH - 1);
+      y = clamp(y + dy, 0, HEIGHT - 1);
+    }
+    return xy;
+  }
+
+  /** A scribble of about n segments, in strokes of STROKE segments. */
+  static SegmentStore scribble(int n, long seed) { return scribble(n, seed, 1); }
+
+  /** The same, drawn with a pen width pixels wide. */
+  static SegmentStore scribble(int n, long seed, float width) {
+    Random r = new Random(seed);
+    SegmentStore s = new ColumnarSegmentStore();
+    for(int done = 0; done < n; done += STROKE) {
+      int[] xy = drag(Math.min(STROKE, n - done), r.nextLong());
+      s.moveTo(xy[0], xy[1], COLORS[r.nextInt(COLORS.length)], width);
+      for(int i = 2; i < xy.length; i += 2) s.lineTo(xy[i], xy[i + 1]);
+    }
+    return s;
+  }
+
+  static int clamp(int v, int lo, int hi) {
+    return v < lo ? lo : v > hi ? hi : v;
+  }
+}
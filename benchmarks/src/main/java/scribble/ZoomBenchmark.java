@@ -0,0 +1,80 @@
+package scribble;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * How long a paint of a zoomed out view takes: from the tiles of the
+ * TilePyramid, once the background thread has drawn them, against drawing
+ * the segments themselves at that scale.  A 1000x800 window shows the
+ * whole drawing once zoomed out to 1/4.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ZoomBenchmark {
+  static final int WIDTH = 1000, HEIGHT = 800;
+
+  @Param({ "100000", "1000000" })
+  public int segments;
+
+  @Param({ "4", "64", "1024" })
+  public int zoomOut;                          // The view shows 1/zoomOut.
+
+  Scribble scribble;
+  BufferedImage image;
+  Graphics2D g;
+
+  @Setup(Level.Trial)
+  public void setup() throws InterruptedException {
+    scribble = new Scribble(null, WIDTH, HEIGHT,
+        new ScribbleDocument(Traces.scribble(segments, 42)));
+    scribble.setSize(WIDTH, HEIGHT);
+    double zoom = 1.0 / zoomOut;
+    scribble.setView(zoom, (Traces.WIDTH - WIDTH / zoom) / 2,  // Centered.
+                     (Traces.HEIGHT - HEIGHT / zoom) / 2);
+    image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    g = image.createGraphics();
+    g.setClip(0, 0, WIDTH, HEIGHT);
+    scribble.paint(g);                         // Ask for the tiles,
+    while (!scribble.pyramid.isIdle()) {       // and wait for them.
+      Thread.sleep(10);
+      scribble.paint(g);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    g.dispose();
+    scribble.dispose();
+  }
+
+  @Benchmark
+  public BufferedImage paintTiles() {
+    scribble.paint(g);
+    return image;
+  }
+
+  @Benchmark
+  public BufferedImage paintSegments() {
+    Graphics2D v = (Graphics2D) g.create();
+    v.transform(scribble.getView());
+    scribble.paintLines(v);
+    v.dispose();
+    return image;
+  }
+}
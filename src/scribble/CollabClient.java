@@ -0,0 +1,287 @@
+package scribble;
+
+import java.awt.EventQueue;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares a ScribbleDocument with the other clients of a CollabServer.
+ *
+ * The client sends the document's own edits to the server, which puts
+ * the edits of all clients in one order and sends them back to everyone.
+ * Until the server has sent an edit of ours back, the edit is pending: it
+ * is shown at the end of the drawing, after all the edits the server has
+ * ordered so far.  An edit of another client that arrives in the meantime
+ * was ordered before our pending ones, so it goes in before them, and the
+ * pending edits are put back after it (rebase).  Once every edit has come
+ * back, each client has applied the same edits in the same order.  A
+ * pending clear hides everything ordered before it, so edits of others
+ * that arrive before it comes back do not change the drawing at all.
+ *
+ * Edits are not sent one by one: the first edit after a send starts the
+ * latency budget (scribble.collab.budget milliseconds, 15 by default),
+ * and everything edited until it runs out goes in one frame.  Adjacent
+ * additions are merged into one, and a clear drops the unsent edits that
+ * it would erase anyway.
+ */
+class CollabClient implements ScribbleDocument.Link, Runnable {
+  static final int MAX_BATCH_POINTS = 32768;     // Send at once beyond this.
+
+  /** Sends the batches of all clients when their budgets run out. */
+  static final ScheduledExecutorService flusher =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "scribble-collab");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /** Told how long each edit of ours took to come back from the server. */
+  interface LatencyListener {
+    void latency(long nanos);
+  }
+
+  protected ScribbleDocument document;
+  protected Socket socket;
+  protected DataInputStream in;
+  protected DataOutputStream out;
+  protected int id;                              // Ours, from the server.
+  protected long budget;                         // Nanoseconds.
+  protected int seq = 0;                         // Of our last edit.
+
+  // The edits of ours that the server has not sent back yet, oldest
+  // first; the first unsent ones are those from index sent on.
+  protected ArrayList<CollabProtocol.Op> pending =
+      new ArrayList<CollabProtocol.Op>();
+  protected int sent = 0;
+  protected ArrayDeque<Long> times =             // System.nanoTime() of
+      new ArrayDeque<Long>();                    // each pending edit.
+  protected int clearing = 0;                    // Pending clears.
+  protected int confirmed = 0;                   // Points the server ordered.
+  protected boolean scheduled = false;           // Will the flusher send?
+  protected volatile boolean closed = false;
+  protected volatile Scribble view;              // Told if the connection
+  protected LatencyListener latencyListener;     // fails.
+  protected long bytesSent = 0, bytesReceived = 0;
+
+  /**
+   * Connect document d to the server at host:port.  The drawing of d is
+   * sent as its first edit, so it ends up after the one the server has,
+   * and d shares its edits from then on, until the connection ends.
+   */
+  CollabClient(ScribbleDocument d, String host, int port) throws IOException {
+    document = d;
+    budget = TimeUnit.MILLISECONDS.toNanos(
+        Long.getLong("scribble.collab.budget", 15).longValue());
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);                  // We batch ourselves.
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(
+        new BufferedOutputStream(socket.getOutputStream()));
+    ByteBuffer hello = readFrame();
+    if (hello.get() != CollabProtocol.HELLO) throw new IOException("no hello");
+    id = ScribbleFile.readVarint(hello);
+    d.setLink(this);
+    Thread t = new Thread(this, "scribble-collab-" + id);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  int getId() { return id; }
+
+  void setLatencyListener(LatencyListener l) { latencyListener = l; }
+
+  /** Report a connection that fails in view v's window. */
+  void reportTo(Scribble v) { view = v; }
+
+  /** Are edits of ours still on their way? */
+  synchronized boolean isPending() { return !pending.isEmpty(); }
+
+  long getBytesSent() { return bytesSent; }
+  long getBytesReceived() { return bytesReceived; }
+
+  public void close() {
+    if (closed) return;
+    closed = true;
+    try { socket.close(); }
+    catch (IOException e) { }
+    document.setLink(null);
+  }
+
+  // The Link methods, called with the document locked.
+
+  public synchronized void appended(SegmentStore part) {
+    CollabProtocol.Op last = pending.size() > sent
+        ? pending.get(pending.size() - 1) : null;
+    if (last != null && last.kind == CollabProtocol.APPEND
+        && last.points() < MAX_BATCH_POINTS) {
+      SegmentStore merged = new ColumnarSegmentStore();
+      merged.addAll(last.part);                  // Coalesce with the
+      merged.addAll(part);                       // unsent addition.
+      last.part = merged;
+      last.edits++;
+      times.add(Long.valueOf(System.nanoTime()));
+    }
+    else queue(last = new CollabProtocol.Op(CollabProtocol.APPEND, id, 0,
+                                            part));
+    schedule(last.points() >= MAX_BATCH_POINTS); // Big enough to go now.
+  }
+
+  public synchronized void cleared() {
+    while (pending.size() > sent) {              // Erased anyway.
+      CollabProtocol.Op op = pending.remove(pending.size() - 1);
+      if (op.kind == CollabProtocol.CLEAR) clearing--;
+      for(int i = 0; i < op.edits; i++) times.removeLast();
+    }
+    queue(new CollabProtocol.Op(CollabProtocol.CLEAR, id, 0, null));
+    clearing++;
+    schedule(false);
+  }
+
+  private void queue(CollabProtocol.Op op) {
+    times.add(Long.valueOf(System.nanoTime()));
+    pending.add(op);
+  }
+
+  /** Have the batch sent when the budget runs out, or now. */
+  private void schedule(boolean now) {
+    if (now) {
+      flusher.execute(new Runnable() { public void run() { flush(); } });
+      scheduled = true;
+    }
+    else if (!scheduled) {
+      flusher.schedule(new Runnable() { public void run() { flush(); } },
+                       budget, TimeUnit.NANOSECONDS);
+      scheduled = true;
+    }
+  }
+
+  /** Send all the unsent edits in one frame. */
+  void flush() {
+    ByteBuffer frame;
+    synchronized (this) {
+      scheduled = false;
+      if (closed || pending.size() == sent) return;
+      List<CollabProtocol.Op> batch = pending.subList(sent, pending.size());
+      for(int i = 0; i < batch.size(); i++) batch.get(i).seq = ++seq;
+      sent = pending.size();
+      try { frame = CollabProtocol.ops(batch, false); }
+      catch (IOException e) { frame = null; }
+    }
+    try {                                        // Only this thread sends,
+      if (frame == null) throw new IOException("cannot encode edits");
+      bytesSent += frame.remaining();            // so frames stay in order.
+      CollabProtocol.write(out, frame);
+    }
+    catch (IOException e) { failed(e); }         // Not locked here.
+  }
+
+  /** Apply the edits the server sends, until the connection ends. */
+  public void run() {
+    try {
+      while (!closed) {
+        ByteBuffer f = readFrame();
+        if (f.get() != CollabProtocol.OPS) throw new IOException("bad frame");
+        List<CollabProtocol.Op> ops = CollabProtocol.readOps(f, true);
+        synchronized (document) {                // Always lock the document
+          synchronized (this) { received(ops); } // first, as its edits do.
+        }
+      }
+    }
+    catch (IOException e) { failed(e); }
+    catch (RuntimeException e) {                 // A frame we cannot use.
+      failed(new IOException("bad frame from the server", e));
+    }
+    finally { close(); }
+  }
+
+  /**
+   * Stop sharing after the connection failed, and say so, unless it was
+   * closed on purpose.  The document keeps its drawing.
+   */
+  protected void failed(IOException e) {
+    if (closed) return;
+    close();
+    final IOException x = e;
+    final Scribble v = view;
+    if (v == null) System.err.println("scribble collaboration ended: " + e);
+    else EventQueue.invokeLater(new Runnable() {
+      public void run() {
+        ScribbleIO.error(v, "The drawing is no longer shared", x);
+      }
+    });
+  }
+
+  /**
+   * Fit a frame of edits ordered by the server into the document.  The
+   * edits of others are put in all at once, in one rebase.
+   */
+  protected void received(List<CollabProtocol.Op> ops) throws IOException {
+    int keep = -1;                               // No rebase yet.
+    boolean clear = false;
+    ArrayList<SegmentStore> parts = new ArrayList<SegmentStore>();
+    for(int k = 0; k < ops.size(); k++) {
+      CollabProtocol.Op op = ops.get(k);
+      if (op.origin == id) {                     // One of ours is back.
+        if (pending.isEmpty() || sent == 0 || pending.get(0).seq != op.seq)
+          throw new IOException("edit " + op.seq + " came back out of order");
+        CollabProtocol.Op mine = pending.remove(0);
+        sent--;
+        if (mine.kind == CollabProtocol.CLEAR) {
+          clearing--;
+          confirmed = 0;
+          keep = -1;                             // We show that already.
+          parts.clear();
+        }
+        else {
+          confirmed += mine.points();
+          if (keep >= 0) parts.add(mine.part);   // After others' in the order.
+        }
+        long now = System.nanoTime();
+        for(int i = 0; i < mine.edits; i++) {
+          long t = times.poll().longValue();
+          if (latencyListener != null) latencyListener.latency(now - t);
+        }
+      }
+      else if (clearing > 0) continue;           // We will clear it anyway.
+      else if (op.kind == CollabProtocol.CLEAR) {
+        keep = 0;
+        clear = true;
+        parts.clear();
+        confirmed = 0;
+      }
+      else {
+        if (keep < 0) keep = confirmed;
+        parts.add(op.part);
+        confirmed += op.points();
+      }
+    }
+    if (keep < 0) return;                        // Nothing of others'.
+    for(int i = 0; i < pending.size(); i++) parts.add(pending.get(i).part);
+    document.rebase(keep, clear, parts);
+  }
+
+  /** Read one frame, and return its body with the type byte first. */
+  protected ByteBuffer readFrame() throws IOException {
+    int length = in.readInt();
+    if (length < 1 || length > CollabProtocol.MAX_FRAME)
+      throw new IOException("bad frame length " + length);
+    byte[] body = new byte[length];
+    in.readFully(body);
+    bytesReceived += length + 4;
+    return ByteBuffer.wrap(body);
+  }
+}
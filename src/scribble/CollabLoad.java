@@ -0,0 +1,168 @@
+package scribble;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load generator for collaborative drawing.  It connects many simulated
+ * clients, each drawing random strokes at a steady rate (and now and then
+ * clearing), and reports how long strokes took to come back from the
+ * server, then checks that all clients ended up with the same drawing:
+ *
+ *   java -cp scribble.jar scribble.CollabLoad [options]
+ *
+ *   -host h        the server (by default one is started in this process)
+ *   -port n        its port (5757)
+ *   -clients n     simulated clients (100)
+ *   -rate n        strokes per second per client (10)
+ *   -points n      points per stroke (30)
+ *   -clear p       chance that an edit is a clear instead (0.001)
+ *   -seconds n     how long to draw (10)
+ */
+public class CollabLoad {
+  protected long[] latencies = new long[1024];   // Nanoseconds, unsorted.
+  protected int count = 0;
+
+  synchronized void record(long nanos) {
+    if (count == latencies.length)
+      latencies = Arrays.copyOf(latencies, count * 2);
+    latencies[count++] = nanos;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    String host = null;
+    int port = CollabProtocol.DEFAULT_PORT;
+    int clients = 100, rate = 10, points = 30, seconds = 10;
+    double clear = 0.001;
+    for(int i = 0; i < args.length; i++) {
+      String a = args[i];
+      if (a.equals("-host")) host = args[++i];
+      else if (a.equals("-port")) port = Integer.parseInt(args[++i]);
+      else if (a.equals("-clients")) clients = Integer.parseInt(args[++i]);
+      else if (a.equals("-rate")) rate = Integer.parseInt(args[++i]);
+      else if (a.equals("-points")) points = Integer.parseInt(args[++i]);
+      else if (a.equals("-clear")) clear = Double.parseDouble(args[++i]);
+      else if (a.equals("-seconds")) seconds = Integer.parseInt(args[++i]);
+      else {
+        System.err.println("usage: CollabLoad [-host h] [-port n] [-clients n]"
+            + " [-rate n] [-points n] [-clear p] [-seconds n]");
+        System.exit(2);
+      }
+    }
+    CollabServer server = null;
+    if (host == null) {                          // Serve ourselves.
+      server = new CollabServer(0);
+      server.start();
+      host = "localhost";
+      port = server.getPort();
+    }
+    new CollabLoad().run(host, port, clients, rate, points, clear, seconds);
+    if (server != null) server.stop();
+    System.exit(0);
+  }
+
+  void run(String host, int port, int n, int rate, final int points,
+           final double clear, int seconds) throws Exception {
+    final ScribbleDocument[] docs = new ScribbleDocument[n];
+    final CollabClient[] clients = new CollabClient[n];
+    for(int i = 0; i < n; i++) {
+      docs[i] = new ScribbleDocument();
+      clients[i] = new CollabClient(docs[i], host, port);
+      clients[i].setLatencyListener(new CollabClient.LatencyListener() {
+        public void latency(long nanos) { record(nanos); }
+      });
+    }
+
+    final long[] strokes = new long[1];
+    ScheduledExecutorService drawers = Executors.newScheduledThreadPool(
+        Math.max(2, Runtime.getRuntime().availableProcessors()));
+    long period = 1000000000L / Math.max(1, rate);
+    final Random seeds = new Random(1);
+    for(int i = 0; i < n; i++) {
+      final ScribbleDocument d = docs[i];
+      final Random r = new Random(seeds.nextLong());
+      drawers.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          if (r.nextDouble() < clear) { d.clear(); return; }
+          d.addStroke(randomStroke(r, points));
+          synchronized (strokes) { strokes[0]++; }
+        }
+      }, r.nextInt((int) Math.min(period, Integer.MAX_VALUE)), period,
+         TimeUnit.NANOSECONDS);
+    }
+    long start = System.nanoTime();
+    Thread.sleep(seconds * 1000L);
+    drawers.shutdown();
+    drawers.awaitTermination(10, TimeUnit.SECONDS);
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    long deadline = System.currentTimeMillis() + 30000;
+    for(int i = 0; i < n; i++)                   // Let everything come back.
+      while (clients[i].isPending() && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+    boolean converged = false;
+    while (!converged && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);                         // Others' edits may still
+      converged = true;                          // be on their way to us.
+      for(int i = 1; i < n; i++)
+        if (!same(docs[0].snapshot(), docs[i].snapshot())) converged = false;
+    }
+
+    long sent = 0, received = 0;
+    for(int i = 0; i < n; i++) {
+      sent += clients[i].getBytesSent();
+      received += clients[i].getBytesReceived();
+      clients[i].close();
+    }
+    long[] l;
+    synchronized (this) { l = Arrays.copyOf(latencies, count); }
+    Arrays.sort(l);
+    System.out.println(String.format(Locale.ROOT,
+        "%d clients, %d strokes of %d points in %.1f s (%.0f strokes/s)",
+        n, strokes[0], points, elapsed, strokes[0] / elapsed));
+    System.out.println(String.format(Locale.ROOT,
+        "stroke latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f"
+        + "  (%d samples)", pct(l, 0.5), pct(l, 0.9), pct(l, 0.99),
+        pct(l, 0.999), l.length == 0 ? 0 : l[l.length - 1] / 1e6, l.length));
+    System.out.println(String.format(Locale.ROOT,
+        "sent %.1f bytes per stroke, received %.1f MB in all",
+        strokes[0] == 0 ? 0.0 : (double) sent / strokes[0], received / 1e6));
+    System.out.println("all clients have the same drawing: "
+                       + (converged ? "yes" : "NO") + " ("
+                       + docs[0].snapshot().pointCount() + " points)");
+  }
+
+  /** The p-th quantile of sorted nanoseconds, in milliseconds. */
+  static double pct(long[] sorted, double p) {
+    if (sorted.length == 0) return 0;
+    return sorted[(int) Math.min(sorted.length - 1,
+                                 (long) (p * sorted.length))] / 1e6;
+  }
+
+  static Stroke randomStroke(Random r, int points) {
+    Color[] colors = { Color.black, Color.red, Color.green, Color.blue };
+    Stroke s = new Stroke(colors[r.nextInt(colors.length)], points);
+    int x = r.nextInt(2000), y = r.nextInt(2000);
+    for(int i = 0; i < points; i++) {
+      s.add(x, y);
+      x = Math.max(0, Math.min(2047, x + r.nextInt(21) - 10));
+      y = Math.max(0, Math.min(2047, y + r.nextInt(21) - 10));
+    }
+    return s;
+  }
+
+  /** Do two stores hold the same points? */
+  static boolean same(SegmentStore a, SegmentStore b) {
+    if (a.pointCount() != b.pointCount()) return false;
+    for(int i = 0; i < a.pointCount(); i++)
+      if (a.x(i) != b.x(i) || a.y(i) != b.y(i) || a.isMove(i) != b.isMove(i)
+          || !a.color(i).equals(b.color(i))) return false;
+    return true;
+  }
+}
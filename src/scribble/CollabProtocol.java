@@ -0,0 +1,150 @@
+package scribble;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages that collaborating clients and the CollabServer exchange.
+ * Every message is a frame: an int length, then a type byte and the body.
+ *
+ * <pre>
+ *   HELLO (server to client)   varint the client's id
+ *   OPS   (either way)         varint number of ops, then each op:
+ *                                byte    APPEND or CLEAR
+ *                                varint  id of the client that made it
+ *                                        (server to client only)
+ *                                varint  that client's sequence number
+ *                                varint  number of points (APPEND only)
+ *                              then, if any op appends points, all their
+ *                              points in the ScribbleFile format
+ * </pre>
+ *
+ * The points of all the ops in a frame are encoded together, so a batch
+ * of small strokes shares one header and one palette.
+ */
+class CollabProtocol {
+  static final int DEFAULT_PORT = 5757;
+  static final int MAX_FRAME = 64 << 20;         // Bytes; larger is an error.
+
+  static final int HELLO = 1;                    // Frame types.
+  static final int OPS = 2;
+
+  static final int APPEND = 1;                   // Op kinds.
+  static final int CLEAR = 2;
+
+  static final int COMPRESS_POINTS = 1024;       // Deflate larger batches.
+
+  /** One edit, as it travels between clients and server. */
+  static class Op {
+    int kind;
+    int origin;                          // Client id; 0 is the server.
+    int seq;                             // Per client, from 1.
+    SegmentStore part;                   // APPEND: the points added.
+    int edits = 1;                       // Local edits merged into it.
+
+    Op(int kind, int origin, int seq, SegmentStore part) {
+      this.kind = kind; this.origin = origin; this.seq = seq;
+      this.part = part;
+    }
+
+    int points() { return part == null ? 0 : part.pointCount(); }
+  }
+
+  /** A HELLO frame telling a client its id. */
+  static ByteBuffer hello(int id) throws IOException {
+    ByteArrayOutputStream b = frame(HELLO);
+    ScribbleFile.writeVarint(b, id);
+    return finish(b);
+  }
+
+  /** An OPS frame; origins are included if withOrigin is true. */
+  static ByteBuffer ops(List<Op> ops, boolean withOrigin) throws IOException {
+    ByteArrayOutputStream b = frame(OPS);
+    ScribbleFile.writeVarint(b, ops.size());
+    int points = 0;
+    for(int i = 0; i < ops.size(); i++) {
+      Op op = ops.get(i);
+      b.write(op.kind);
+      if (withOrigin) ScribbleFile.writeVarint(b, op.origin);
+      ScribbleFile.writeVarint(b, op.seq);
+      if (op.kind == APPEND) ScribbleFile.writeVarint(b, op.points());
+      points += op.points();
+    }
+    if (points > 0) {
+      SegmentStore all = new ColumnarSegmentStore();
+      for(int i = 0; i < ops.size(); i++)
+        if (ops.get(i).part != null) all.addAll(ops.get(i).part);
+      ScribbleFile.write(all, b, points >= COMPRESS_POINTS);
+    }
+    return finish(b);
+  }
+
+  /**
+   * Decode the body of an OPS frame, which starts after its type byte.
+   * A frame that does not add up, whatever its source, is an IOException.
+   */
+  static List<Op> readOps(ByteBuffer body, boolean withOrigin)
+       throws IOException {
+    try {
+      int n = ScribbleFile.readVarint(body);
+      if (n < 0 || n > body.remaining())  // Each op takes a byte at least.
+        throw new IOException("bad op count " + n);
+      ArrayList<Op> ops = new ArrayList<Op>(n);
+      int[] counts = new int[n];
+      long points = 0;
+      for(int i = 0; i < n; i++) {
+        int kind = body.get();
+        if (kind != APPEND && kind != CLEAR)
+          throw new IOException("unknown op " + kind);
+        int origin = withOrigin ? ScribbleFile.readVarint(body) : 0;
+        int seq = ScribbleFile.readVarint(body);
+        if (kind == APPEND) {
+          counts[i] = ScribbleFile.readVarint(body);
+          if (counts[i] < 0) throw new IOException("bad point count");
+          points += counts[i];
+        }
+        ops.add(new Op(kind, origin, seq, null));
+      }
+      SegmentStore all = points > 0 ? ScribbleFile.read(body)
+                                    : new ColumnarSegmentStore();
+      if (all.pointCount() != points) throw new IOException("bad points");
+      for(int i = 0, from = 0; i < n; i++) {     // Cut the points into
+        if (ops.get(i).kind != APPEND) continue; // the ops.
+        if (counts[i] > 0 && !all.isMove(from))
+          throw new IOException("op " + i + " does not start a stroke");
+        ops.get(i).part = ScribbleDocument.copyRange(all, from,
+                                                     from + counts[i]);
+        from += counts[i];
+      }
+      return ops;
+    }
+    catch (java.nio.BufferUnderflowException e) {
+      throw new IOException("truncated frame");
+    }
+  }
+
+  /** A buffer to write a frame of the given type into. */
+  private static ByteArrayOutputStream frame(int type) {
+    ByteArrayOutputStream b = new ByteArrayOutputStream(64);
+    b.write(0); b.write(0); b.write(0); b.write(0);  // The length, later.
+    b.write(type);
+    return b;
+  }
+
+  private static ByteBuffer finish(ByteArrayOutputStream b) throws IOException {
+    ByteBuffer f = ByteBuffer.wrap(b.toByteArray());
+    f.putInt(0, f.limit() - 4);
+    return f;
+  }
+
+  /** Send a frame on a stream. */
+  static void write(DataOutputStream out, ByteBuffer frame) throws IOException {
+    out.write(frame.array(), frame.arrayOffset() + frame.position(),
+              frame.remaining());
+    out.flush();
+  }
+}
@@ -0,0 +1,223 @@
+package scribble;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The server of a collaborative drawing session:
+ *
+ *   java -cp scribble.jar scribble.CollabServer [port]
+ *
+ * It puts the edits of all clients in one order and sends every edit, in
+ * that order, to every client, including the one that made it; clients
+ * that apply the edits in this order end up with the same drawing.  It
+ * keeps the drawing too, so that it can send it to clients that join
+ * later.
+ *
+ * One thread serves all clients with a selector.  The edits read in one
+ * round are sent out together in one frame, encoded once for everybody.
+ * A client that does not keep up with its frames is disconnected rather
+ * than allowed to hold the others back.
+ */
+public class CollabServer implements Runnable {
+  static final int MAX_BACKLOG = 16 << 20;       // Unsent bytes per client.
+
+  /** What the server knows about one client. */
+  static class Client {
+    final int id;
+    final SocketChannel channel;
+    ByteBuffer head = ByteBuffer.allocate(4);    // Reading a frame length,
+    ByteBuffer body;                             // or then its body.
+    ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+    long backlog = 0;                            // Bytes in out.
+
+    Client(int id, SocketChannel channel) {
+      this.id = id;
+      this.channel = channel;
+    }
+  }
+
+  protected ServerSocketChannel server;
+  protected Selector selector;
+  protected ArrayList<Client> clients = new ArrayList<Client>();
+  protected int nextId = 1;
+  protected SegmentStore drawing = new ColumnarSegmentStore();
+  protected ArrayList<CollabProtocol.Op> round =  // Read, not yet sent.
+      new ArrayList<CollabProtocol.Op>();
+  protected volatile boolean running = true;
+  protected long opsIn = 0, framesOut = 0, bytesOut = 0;
+
+  /** Listen on the given port of all interfaces (0 picks a free one). */
+  public CollabServer(int port) throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port), 256);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0])
+                               : CollabProtocol.DEFAULT_PORT;
+    CollabServer s = new CollabServer(port);
+    System.out.println("scribble server on port " + s.getPort());
+    s.run();
+  }
+
+  int getPort() { return server.socket().getLocalPort(); }
+
+  /** Run the server in a new daemon thread. */
+  Thread start() {
+    Thread t = new Thread(this, "scribble-server");
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+
+  /** Stop serving; the thread closes all connections. */
+  void stop() {
+    running = false;
+    selector.wakeup();
+  }
+
+  public void run() {
+    try {
+      while (running) {
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey k = keys.next();
+          keys.remove();
+          if (!k.isValid()) continue;
+          if (k.isAcceptable()) accept();
+          else {
+            Client c = (Client) k.attachment();
+            try {
+              if (k.isReadable()) read(c);
+              if (k.isValid() && k.isWritable()) write(c);
+            }
+            catch (IOException e) { drop(c); }
+            catch (RuntimeException e) { drop(c); } // Only its fault.
+          }
+        }
+        broadcast();                             // All this round's ops.
+      }
+    }
+    catch (IOException e) {
+      System.err.println("scribble server stopped: " + e);
+    }
+    finally {
+      for(int i = clients.size() - 1; i >= 0; i--) drop(clients.get(i));
+      try { server.close(); selector.close(); }
+      catch (IOException e) { }
+    }
+  }
+
+  /** Take a new client, and send it its id and the drawing so far. */
+  protected void accept() throws IOException {
+    SocketChannel ch = server.accept();
+    if (ch == null) return;
+    ch.configureBlocking(false);
+    ch.socket().setTcpNoDelay(true);             // We batch ourselves.
+    Client c = new Client(nextId++, ch);
+    ch.register(selector, SelectionKey.OP_READ, c);
+    clients.add(c);
+    send(c, CollabProtocol.hello(c.id));
+    ArrayList<CollabProtocol.Op> state = new ArrayList<CollabProtocol.Op>();
+    state.add(new CollabProtocol.Op(CollabProtocol.CLEAR, 0, 0, null));
+    if (drawing.pointCount() > 0)
+      state.add(new CollabProtocol.Op(CollabProtocol.APPEND, 0, 0,
+                                      drawing.snapshot()));
+    send(c, CollabProtocol.ops(state, true));
+  }
+
+  /** Read what has arrived from client c, a frame at a time. */
+  protected void read(Client c) throws IOException {
+    while (true) {
+      ByteBuffer b = c.body != null ? c.body : c.head;
+      int n = c.channel.read(b);
+      if (n < 0) throw new IOException("closed");
+      if (b.hasRemaining()) return;              // Wait for the rest.
+      if (c.body == null) {
+        int length = c.head.getInt(0);
+        if (length < 1 || length > CollabProtocol.MAX_FRAME)
+          throw new IOException("bad frame length " + length);
+        c.body = ByteBuffer.allocate(length);
+        continue;
+      }
+      c.body.flip();
+      if (c.body.get() != CollabProtocol.OPS) throw new IOException("bad frame");
+      List<CollabProtocol.Op> ops = CollabProtocol.readOps(c.body, false);
+      for(int i = 0; i < ops.size(); i++) {
+        CollabProtocol.Op op = ops.get(i);
+        op.origin = c.id;                        // This is its place in
+        apply(op);                               // the order.
+        round.add(op);
+      }
+      opsIn += ops.size();
+      c.body = null;
+      c.head.clear();
+    }
+  }
+
+  /** Apply an op to the server's copy of the drawing. */
+  protected void apply(CollabProtocol.Op op) {
+    if (op.kind == CollabProtocol.CLEAR) drawing = new ColumnarSegmentStore();
+    else drawing.addAll(op.part);
+  }
+
+  /** Send the ops read in this round to every client, in one frame. */
+  protected void broadcast() throws IOException {
+    if (round.isEmpty()) return;
+    ByteBuffer frame = CollabProtocol.ops(round, true);
+    round.clear();
+    for(int i = clients.size() - 1; i >= 0; i--)
+      send(clients.get(i), frame.duplicate());
+  }
+
+  /** Queue a frame for client c, and write as much of it as we can. */
+  protected void send(Client c, ByteBuffer frame) {
+    c.out.add(frame);
+    c.backlog += frame.remaining();
+    framesOut++;
+    bytesOut += frame.remaining();
+    try {
+      if (c.backlog > MAX_BACKLOG) throw new IOException("too slow");
+      write(c);
+    }
+    catch (IOException e) { drop(c); }
+  }
+
+  /** Write queued frames until the socket is full. */
+  protected void write(Client c) throws IOException {
+    while (!c.out.isEmpty()) {
+      ByteBuffer b = c.out.peek();
+      c.backlog -= c.channel.write(b);
+      if (b.hasRemaining()) break;
+      c.out.poll();
+    }
+    SelectionKey k = c.channel.keyFor(selector);
+    if (k != null && k.isValid())
+      k.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+  }
+
+  protected void drop(Client c) {
+    clients.remove(c);
+    try { c.channel.close(); }
+    catch (IOException e) { }
+  }
+
+  long getOpsIn() { return opsIn; }
+  long getFramesOut() { return framesOut; }
+  long getBytesOut() { return bytesOut; }
+}
@@ -0,0 +1,340 @@
+package scribble;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A SegmentStore that keeps its points in parallel primitive columns
+ * instead of one object per segment.  Each column is split into fixed size
+ * chunks, so growing the store never copies the points already stored.
+ * A point costs two shorts for its coordinates plus one flag byte holding
+ * its palette index (a pen: color and width) and the "move" bit, and
+ * consecutive segments share their common end point: about 5 bytes per
+ * segment, against roughly 28 bytes for a Scribble.Line object and its
+ * list slot.
+ * Coordinates may be any int.  A chunk keeps them in shorts until a point
+ * that does not fit comes along, and in ints from then on, so only the
+ * parts of a drawing far from the origin pay for the wider columns.
+ * New chunks are only added past the last one, and points are written
+ * past the end of the store.  That lets a snapshot share both the chunks
+ * and their directories with the store it was taken from.  Truncating
+ * the store (for undo) is the exception: a later write below the end of
+ * a snapshot first copies the chunk it goes to, and the directories.
+ * The first chunk starts small and doubles up to the full size, so that
+ * the many small stores (strokes, pasted parts, network edits) stay small.
+ */
+class ColumnarSegmentStore implements SegmentStore, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final int CHUNK_BITS = 12;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;   // Points per chunk.
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  static final int FIRST_SIZE = 16;                 // Points, to begin with.
+
+  static final int MOVE = 0x80;                     // Flag bit: starts a polyline.
+  static final int COLOR_MASK = 0x7f;               // Flag bits: palette index.
+
+  protected transient short[][] xs;                 // The coordinate columns,
+  protected transient short[][] ys;                 // null for wide chunks,
+  protected transient int[][] wxs;                  // which have these
+  protected transient int[][] wys;                  // instead.
+  protected transient byte[][] flags;               // and the flag column.
+  protected transient int chunks;                   // Chunks allocated.
+  protected int count;                              // Points stored.
+  protected int moves;                              // Polylines started.
+  protected Palette palette = new Palette();
+  protected boolean wide = false;                   // Any chunk widened?
+  protected transient boolean readOnly = false;     // A snapshot?
+  protected transient int intact = 0;               // Old points kept past count
+                                                    // by truncate().
+  protected transient int shared = 0;               // Points snapshots can see.
+  protected transient boolean sharedDirs = false;   // Directories too?
+  protected transient int[] owned;                  // Chunks copied since the
+  protected transient int stamp = 0;                // last snapshot hold stamp.
+
+  public ColumnarSegmentStore() { init(); }
+
+  private void init() {
+    xs = new short[4][];
+    ys = new short[4][];
+    wxs = new int[4][];
+    wys = new int[4][];
+    flags = new byte[4][];
+    chunks = 0;
+  }
+
+  public int pointCount() { return count; }
+  public int segmentCount() { return count - moves; }
+
+  public int x(int i) {
+    short[] c = xs[i >>> CHUNK_BITS];
+    return c != null ? c[i & CHUNK_MASK] : wxs[i >>> CHUNK_BITS][i & CHUNK_MASK];
+  }
+
+  public int y(int i) {
+    short[] c = ys[i >>> CHUNK_BITS];
+    return c != null ? c[i & CHUNK_MASK] : wys[i >>> CHUNK_BITS][i & CHUNK_MASK];
+  }
+
+  public Color color(int i) { return palette.get(flag(i) & COLOR_MASK); }
+
+  public float width(int i) { return palette.width(flag(i) & COLOR_MASK); }
+
+  public float maxWidth() { return palette.maxWidth(); }
+
+  public boolean isMove(int i) { return (flag(i) & MOVE) != 0; }
+
+  int flag(int i) { return flags[i >>> CHUNK_BITS][i & CHUNK_MASK]; }
+
+  public void moveTo(int x, int y, Color c) { moveTo(x, y, c, 1); }
+
+  public void moveTo(int x, int y, Color c, float width) {
+    append(x, y, MOVE | palette.indexOf(c, width));
+    moves++;
+  }
+
+  public void lineTo(int x, int y) {
+    if (count == 0) throw new IllegalStateException("lineTo without moveTo");
+    append(x, y, flag(count - 1) & COLOR_MASK);
+  }
+
+  public void addSegment(int x1, int y1, int x2, int y2, Color c) {
+    int color = palette.indexOf(c);
+    int last = count - 1;
+    if (last < 0 || x(last) != x1 || y(last) != y1   // Does not continue the
+        || (flag(last) & COLOR_MASK) != color) {      // last polyline, so
+      append(x1, y1, MOVE | color);                    // start a new one.
+      moves++;
+    }
+    append(x2, y2, color);
+  }
+
+  public void addAll(SegmentStore other) {
+    if (readOnly) throw new UnsupportedOperationException("snapshot");
+    ensureCapacity(count + other.pointCount());       // Grow only once.
+    Color c = null;
+    float w = 0;
+    int color = 0;
+    for(int i = 0; i < other.pointCount(); i++) {
+      if (other.color(i) != c || other.width(i) != w) { // Map pens into our
+        c = other.color(i);                           // palette only when
+        w = other.width(i);                           // they change.
+        color = palette.indexOf(c, w);
+      }
+      if (other.isMove(i)) {
+        append(other.x(i), other.y(i), MOVE | color);
+        moves++;
+      }
+      else append(other.x(i), other.y(i), color);
+    }
+  }
+
+  public void clear() {
+    if (readOnly) throw new UnsupportedOperationException("snapshot");
+    init();
+    count = 0;
+    moves = 0;
+    wide = false;
+    intact = shared = 0;                             // Nothing is shared now.
+    sharedDirs = false;
+  }
+
+  public void truncate(int n) {
+    if (readOnly) throw new UnsupportedOperationException("snapshot");
+    if (n < 0 || n > count) throw new IndexOutOfBoundsException("" + n);
+    for(int i = n; i < count; i++) if (isMove(i)) moves--;
+    intact = Math.max(intact, count);
+    count = n;
+  }
+
+  public void restore(int n) {
+    if (readOnly) throw new UnsupportedOperationException("snapshot");
+    if (n < count || n > intact)
+      throw new IllegalStateException("points were overwritten");
+    for(int i = count; i < n; i++) if (isMove(i)) moves++;
+    count = n;
+  }
+
+  public SegmentStore copy() {
+    ColumnarSegmentStore s = new ColumnarSegmentStore();
+    s.addAll(this);
+    return s;
+  }
+
+  public SegmentStore snapshot() {
+    ColumnarSegmentStore s = new ColumnarSegmentStore();
+    s.xs = xs;                                       // Share everything, so
+    s.ys = ys;                                       // a snapshot costs the
+    s.wxs = wxs;                                     // same at any size.
+    s.wys = wys;
+    s.flags = flags;
+    s.wide = wide;
+    s.chunks = chunks;
+    s.count = count;
+    s.moves = moves;
+    s.palette = palette.copy();
+    s.readOnly = true;
+    shared = Math.max(shared, count);                // Copy before writing
+    sharedDirs = true;                               // below this again.
+    stamp++;
+    return s;
+  }
+
+  public long bytesUsed() {
+    long bytes = capacity() * 5;                     // 2+2 coordinate + 1 flag byte,
+    for(int c = 0; c < chunks; c++)                  // and 4 more in wide chunks.
+      if (xs[c] == null) bytes += (long) wxs[c].length * 4;
+    return bytes;
+  }
+
+  /** The number of points there is room for. */
+  private long capacity() {
+    return chunks == 0 ? 0 : (long) (chunks - 1) * CHUNK_SIZE + flags[0].length;
+  }
+
+  /** Store one point, allocating a new chunk when the last one is full. */
+  protected void append(int x, int y, int flag) {
+    if (readOnly) throw new UnsupportedOperationException("snapshot");
+    int chunk = count >>> CHUNK_BITS;
+    if (chunk == chunks) addChunk(FIRST_SIZE);
+    else if (count < shared) unshare(chunk);         // A snapshot reads it.
+    int i = count & CHUNK_MASK;
+    if (i == flags[chunk].length) growFirst(CHUNK_SIZE); // Only the first is short.
+    if (xs[chunk] != null && ((short) x != x || (short) y != y)) widen(chunk);
+    if (xs[chunk] != null) {
+      xs[chunk][i] = (short) x;
+      ys[chunk][i] = (short) y;
+    }
+    else {
+      wxs[chunk][i] = x;
+      wys[chunk][i] = y;
+    }
+    flags[chunk][i] = (byte) flag;
+    count++;
+    intact = 0;                                      // Can't restore() now.
+  }
+
+  /** Give this store its own copy of a chunk that snapshots share. */
+  private void unshare(int chunk) {
+    ownDirs();
+    if (owned == null || owned.length < xs.length) {
+      int[] grown = new int[xs.length];
+      if (owned != null) System.arraycopy(owned, 0, grown, 0, owned.length);
+      owned = grown;
+    }
+    if (owned[chunk] == stamp) return;               // Copied already.
+    if (xs[chunk] != null) {
+      xs[chunk] = xs[chunk].clone();
+      ys[chunk] = ys[chunk].clone();
+    }
+    else {
+      wxs[chunk] = wxs[chunk].clone();
+      wys[chunk] = wys[chunk].clone();
+    }
+    flags[chunk] = flags[chunk].clone();
+    owned[chunk] = stamp;
+  }
+
+  /** Copy the directories, if snapshots share them, before changing them. */
+  private void ownDirs() {
+    if (!sharedDirs) return;
+    xs = xs.clone();
+    ys = ys.clone();
+    wxs = wxs.clone();
+    wys = wys.clone();
+    flags = flags.clone();
+    sharedDirs = false;
+  }
+
+  /**
+   * Move a chunk's coordinates into int columns.  The short ones are left
+   * as they are, for any snapshot that reads them.
+   */
+  private void widen(int chunk) {
+    ownDirs();
+    short[] cx = xs[chunk], cy = ys[chunk];
+    int[] wx = new int[cx.length], wy = new int[cy.length];
+    for(int i = 0; i < cx.length; i++) { wx[i] = cx[i]; wy[i] = cy[i]; }
+    wxs[chunk] = wx;
+    wys[chunk] = wy;
+    xs[chunk] = ys[chunk] = null;
+    wide = true;
+  }
+
+  /** Make sure there are chunks for at least n points. */
+  protected void ensureCapacity(int n) {
+    if (chunks == 0 && n > 0) addChunk(n);
+    if (chunks > 0 && flags[0].length < n) growFirst(n);
+    while (capacity() < n) addChunk(CHUNK_SIZE);
+  }
+
+  /** Grow the first chunk to hold at least n points, or to full size. */
+  private void growFirst(int n) {
+    int size = flags[0].length;
+    while (size < n && size < CHUNK_SIZE) size *= 2;
+    if (size == flags[0].length) return;
+    ownDirs();                                       // Snapshots keep the
+    if (xs[0] != null) {                             // directories they
+      xs[0] = Arrays.copyOf(xs[0], size);            // have, and the short
+      ys[0] = Arrays.copyOf(ys[0], size);            // chunk in them.
+    }
+    else {
+      wxs[0] = Arrays.copyOf(wxs[0], size);
+      wys[0] = Arrays.copyOf(wys[0], size);
+    }
+    flags[0] = Arrays.copyOf(flags[0], size);
+  }
+
+  /** Add a chunk; the first one only has room for some more points. */
+  private void addChunk(int points) {
+    if (chunks == xs.length) {                       // Only the small chunk
+      int n = chunks * 2;                            // directories are ever
+      xs = Arrays.copyOf(xs, n);                     // copied.
+      ys = Arrays.copyOf(ys, n);
+      wxs = Arrays.copyOf(wxs, n);
+      wys = Arrays.copyOf(wys, n);
+      flags = Arrays.copyOf(flags, n);
+    }
+    int size = CHUNK_SIZE;
+    if (chunks == 0)                                 // A power of two, so
+      for(size = FIRST_SIZE; size < points && size < CHUNK_SIZE; size *= 2) { }
+    xs[chunks] = new short[size];                    // that it can double
+    ys[chunks] = new short[size];                    // up to CHUNK_SIZE.
+    flags[chunks] = new byte[size];
+    chunks++;
+  }
+
+  /**
+   * Serialize only the used part of the columns, with short coordinates
+   * unless some did not fit (streams from before wide chunks have none).
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    for(int i = 0; i < count; i++) {
+      if (wide) { out.writeInt(x(i)); out.writeInt(y(i)); }
+      else { out.writeShort(x(i)); out.writeShort(y(i)); }
+      out.writeByte(flag(i));
+    }
+  }
+
+  private void readObject(ObjectInputStream in)
+       throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    init();
+    int n = count;
+    if (n < 0) throw new InvalidObjectException("bad point count");
+    count = 0;
+    ensureCapacity(Math.min(n, CHUNK_SIZE));        // Count may lie: grow as
+                                                    // the points arrive.
+    for(int i = 0; i < n; i++) {
+      int x = wide ? in.readInt() : in.readShort();
+      int y = wide ? in.readInt() : in.readShort();
+      append(x, y, in.readByte());
+    }
+  }
+}
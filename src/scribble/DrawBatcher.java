@@ -0,0 +1,104 @@
+package scribble;
+
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+/**
+ * Puts the points of the stroke being drawn on screen at most once per
+ * frame, instead of drawing every motion event as it arrives.  A flush
+ * repaints just the bounding box of the points added since the previous
+ * flush; the repaint draws the stroke with a single drawPolyline call.
+ * The batcher also counts how many events each frame absorbed and how
+ * many frames the timer could not deliver on time.
+ */
+class DrawBatcher implements ActionListener {
+  static final int DEFAULT_RATE = 60;      // Flushes per second.
+
+  protected Scribble scribble;             // The component we draw for.
+  protected Timer timer;                   // Fires the flushes.
+  protected Stroke stroke;                 // The stroke being drawn,
+  protected int flushed = 0;               // and how much of it is shown.
+  protected int pending = 0;               // Events since the last flush.
+  protected long lastFlush = 0;            // System.nanoTime() of it.
+
+  protected long events = 0;               // Motion events seen,
+  protected long frames = 0;               // flushes that drew something,
+  protected long dropped = 0;              // and frames that came too late.
+  protected int lastFrameEvents = 0;
+  protected int maxFrameEvents = 0;
+
+  public DrawBatcher(Scribble scribble) {
+    this.scribble = scribble;
+    timer = new Timer(1000 / DEFAULT_RATE, this);
+    setMaxFlushRate(Integer.getInteger("scribble.fps", DEFAULT_RATE));
+  }
+
+  /** Limit the flushes to at most rate per second. */
+  public void setMaxFlushRate(int rate) {
+    timer.setDelay(1000 / Math.max(1, Math.min(rate, 1000)));
+  }
+
+  public int getMaxFlushRate() { return 1000 / timer.getDelay(); }
+
+  /** Start showing a new stroke. */
+  void begin(Stroke s) {
+    end();                                 // Finish any earlier stroke.
+    stroke = s;
+    flushed = 0;
+  }
+
+  /** Note a motion event on the stroke; it shows up at the next flush. */
+  void add() {
+    events++;
+    pending++;
+    if (!timer.isRunning()) {              // Idle until now: start the
+      lastFlush = System.nanoTime();       // frame clock.
+      timer.start();
+    }
+  }
+
+  /** Show what is left of the stroke, and stop tracking it. */
+  void end() {
+    flush();
+    stroke = null;
+  }
+
+  /** The timer callback: one frame has passed. */
+  public void actionPerformed(ActionEvent e) {
+    if (pending == 0) { timer.stop(); return; } // Pointer stopped, go idle.
+    long now = System.nanoTime();
+    long period = timer.getDelay() * 1000000L;
+    long late = (now - lastFlush) / period - 1; // Whole frames missed.
+    if (late > 0) dropped += late;
+    lastFlush = now;
+    flush();
+  }
+
+  /** Repaint the part of the stroke added since the last flush. */
+  void flush() {
+    if (pending == 0) return;
+    if (stroke != null) {
+      Rectangle r = stroke.bounds(Math.max(flushed - 1, 0));
+      if (r != null) scribble.repaintDrawing(r);
+      flushed = stroke.size();
+    }
+    frames++;
+    lastFrameEvents = pending;
+    maxFrameEvents = Math.max(maxFrameEvents, pending);
+    pending = 0;
+  }
+
+  long getEvents() { return events; }
+  long getFrames() { return frames; }
+  long getDroppedFrames() { return dropped; }
+  int getLastFrameEvents() { return lastFrameEvents; }
+  int getMaxFrameEvents() { return maxFrameEvents; }
+
+  /** The average number of motion events drawn per flushed frame. */
+  double getEventsPerFrame() {
+    return frames == 0 ? 0 : (double) events / frames;
+  }
+}
@@ -0,0 +1,120 @@
+package scribble;
+
+import java.util.Arrays;
+
+/**
+ * The strokes erased from a drawing whose points are still in its store:
+ * ascending, disjoint ranges of point indices, each from a point that
+ * starts a stroke up to the point after the last one it erases.  Erasing
+ * or bringing back strokes only makes a new set, and leaves the store and
+ * its index alone, so it costs as much as the strokes do rather than the
+ * drawing.  The erased points are dropped from a copy of the store, with
+ * compact(), when that is needed.  A set never changes once it is made,
+ * so a document publishes it with each of its states.
+ */
+class ErasedSet {
+  static final ErasedSet NONE = new ErasedSet(new int[0], 0);
+
+  protected final int[] ranges;            // Start and end of each range.
+  protected final int size;                // Ranges.
+  protected final int points;              // Points in all of them.
+
+  private ErasedSet(int[] ranges, int size) {
+    this.ranges = ranges;
+    this.size = size;
+    int n = 0;
+    for(int k = 0; k < size; k++) n += ranges[2*k+1] - ranges[2*k];
+    points = n;
+  }
+
+  /** The set of the ranges in r, start then end of each, ascending. */
+  static ErasedSet of(IntList r) {
+    return r.size() == 0 ? NONE
+                         : new ErasedSet(Arrays.copyOf(r.data, r.size()), r.size() / 2);
+  }
+
+  boolean isEmpty() { return size == 0; }
+  int size() { return size; }
+  int start(int k) { return ranges[2*k]; }
+  int end(int k) { return ranges[2*k+1]; }
+  int points() { return points; }
+  long bytesUsed() { return 16 + 4L * ranges.length; }
+
+  /** The first range that ends after point i, or size() if none does. */
+  int indexAfter(int i) {
+    int lo = 0, hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ranges[2*mid+1] <= i) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  /** Is point i erased? */
+  boolean contains(int i) {
+    int k = indexAfter(i);
+    return k < size && ranges[2*k] <= i;
+  }
+
+  /** The points of this set and of o. */
+  ErasedSet with(ErasedSet o) {
+    if (o.size == 0) return this;
+    if (size == 0) return o;
+    IntList r = new IntList(2 * (size + o.size));
+    int a = 0, b = 0;
+    while (a < size || b < o.size) {                 // Take the range that
+      int s, e;                                      // starts first.
+      if (b == o.size || (a < size && start(a) <= o.start(b))) {
+        s = start(a); e = end(a); a++;
+      }
+      else { s = o.start(b); e = o.end(b); b++; }
+      if (r.size() > 0 && s < r.last()) {            // Overlaps the last.
+        if (e > r.last()) { r.pop(); r.add(e); }
+      }
+      else { r.add(s); r.add(e); }
+    }
+    return of(r);
+  }
+
+  /** The points of this set that are not in o. */
+  ErasedSet without(ErasedSet o) {
+    if (o.size == 0 || size == 0) return this;
+    IntList r = new IntList(2 * size);
+    int b = 0;
+    for(int a = 0; a < size; a++) {
+      int s = start(a), e = end(a);
+      while (b < o.size && o.end(b) <= s) b++;
+      for(int k = b; k < o.size && o.start(k) < e; k++) {
+        if (o.start(k) > s) { r.add(s); r.add(o.start(k)); }
+        s = Math.max(s, o.end(k));
+      }
+      if (s < e) { r.add(s); r.add(e); }
+    }
+    return of(r);
+  }
+
+  /** The points of this set before point n. */
+  ErasedSet truncate(int n) {
+    int k = indexAfter(n);
+    if (k == size) return this;
+    IntList r = new IntList(2 * k + 2);
+    for(int j = 0; j < k; j++) { r.add(start(j)); r.add(end(j)); }
+    if (start(k) < n) { r.add(start(k)); r.add(n); }
+    return of(r);
+  }
+
+  /** A copy of store s without the points of this set. */
+  SegmentStore compact(SegmentStore s) {
+    int n = s.pointCount();
+    ColumnarSegmentStore c = new ColumnarSegmentStore();
+    c.ensureCapacity(n - points);
+    int from = 0;
+    for(int k = 0; k < size && start(k) < n; k++) {
+      ScribbleDocument.copyInto(s, from, start(k), c);
+      from = Math.max(from, end(k));
+    }
+    if (from < n) ScribbleDocument.copyInto(s, from, n, c);
+    return c;
+  }
+}
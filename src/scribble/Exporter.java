@@ -0,0 +1,318 @@
+package scribble;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders saved scribbles to PNG images and SVG drawings from the command
+ * line, without a display and without any Swing components:
+ *
+ *   java -cp scribble.jar scribble.Exporter [options] file|directory ...
+ *
+ *   -png, -svg     what to write (PNG if neither is given)
+ *   -out dir       where to write it (next to each input by default)
+ *   -scale f       scale factor for the PNG images
+ *   -fit n         scale each PNG image down to at most n pixels a side
+ *   -tile n        tile size in pixels (512)
+ *   -aa            antialias the PNG images
+ *   -threads n     worker threads (one per core)
+ *   -v             print the time taken by every tile
+ *
+ * Files and their tiles are all rendered in parallel by one fork/join
+ * pool: a file is cut into square tiles, each drawn by its own task into
+ * its part of the image, with only the segments the file's spatial index
+ * finds in the tile.  A summary of the tile times is printed for every
+ * file, and the overall throughput at the end.
+ */
+public class Exporter {
+  static final Color bg = Color.white;
+  static final int MARGIN = 1;             // Pixels around the drawing.
+
+  protected boolean png = false, svg = false;
+  protected File out = null;
+  protected double scale = 1;
+  protected int fit = 0;
+  protected int tile = 512;
+  protected boolean verbose = false;
+  protected boolean antialias = false;
+  protected AtomicInteger failed = new AtomicInteger();
+
+  public static void main(String[] args) throws Exception {
+    if (System.getProperty("java.awt.headless") == null)
+      System.setProperty("java.awt.headless", "true");   // Before any AWT.
+    Exporter e = new Exporter();
+    int threads = Runtime.getRuntime().availableProcessors();
+    ArrayList<File> files = new ArrayList<File>();
+    try {
+      for(int i = 0; i < args.length; i++) {
+        String a = args[i];
+        if (a.equals("-png")) e.png = true;
+        else if (a.equals("-svg")) e.svg = true;
+        else if (a.equals("-v")) e.verbose = true;
+        else if (a.equals("-aa")) e.antialias = true;
+        else if (a.equals("-out")) e.out = new File(args[++i]);
+        else if (a.equals("-scale")) e.scale = Double.parseDouble(args[++i]);
+        else if (a.equals("-fit")) e.fit = Integer.parseInt(args[++i]);
+        else if (a.equals("-tile")) e.tile = Integer.parseInt(args[++i]);
+        else if (a.equals("-threads")) threads = Integer.parseInt(args[++i]);
+        else if (a.startsWith("-")) throw new IllegalArgumentException(a);
+        else add(files, new File(a));
+      }
+      if (e.scale <= 0 || e.tile <= 0 || threads <= 0 || e.fit < 0)
+        throw new IllegalArgumentException("sizes must be positive");
+      if (e.fit > 0 && e.fit <= 2 * MARGIN)
+        throw new IllegalArgumentException("-fit must be over " + 2 * MARGIN);
+    }
+    catch (RuntimeException x) {           // Bad or missing number, too.
+      System.err.println("bad arguments: " + x.getMessage());
+      System.err.println("usage: Exporter [-png] [-svg] [-out dir] [-scale f]"
+                         + " [-fit n] [-tile n] [-aa] [-threads n] [-v] file ...");
+      System.exit(2);
+    }
+    if (!e.png && !e.svg) e.png = true;
+    if (e.out != null) e.out.mkdirs();
+
+    long start = System.nanoTime();
+    new ForkJoinPool(threads).invoke(e.new Files(files, 0, files.size()));
+    double s = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format(Locale.ROOT,
+        "%d files (%d failed) in %.2f s: %.1f files/s on %d threads",
+        files.size(), e.failed.get(), s, files.size() / s, threads));
+    System.exit(e.failed.get() > 0 ? 1 : 0);
+  }
+
+  /** Add file f, or all the files in directory f, to the list. */
+  static void add(ArrayList<File> files, File f) {
+    File[] in = f.listFiles();
+    if (in == null) { files.add(f); return; }
+    Arrays.sort(in);
+    for(int i = 0; i < in.length; i++) if (in[i].isFile()) files.add(in[i]);
+  }
+
+  /** Exports files from..to-1 of a list, splitting it among the workers. */
+  class Files extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final ArrayList<File> files;
+    final int from, to;
+
+    Files(ArrayList<File> files, int from, int to) {
+      this.files = files; this.from = from; this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > 1) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Files(files, from, mid), new Files(files, mid, to));
+      }
+      else if (to > from) export(files.get(from));
+    }
+  }
+
+  /** Export one file, reporting rather than throwing any failure. */
+  void export(File f) {
+    try {
+      long t0 = System.nanoTime();
+      SegmentStore s = ScribbleFile.read(f);
+      long t1 = System.nanoTime();
+      StringBuilder report = new StringBuilder(f.getPath());
+      report.append(String.format(Locale.ROOT, ": %d segments, read %.1f ms",
+                                  s.segmentCount(), (t1 - t0) / 1e6));
+      Rectangle b = bounds(s);
+      if (png) writePng(s, b, output(f, ".png"), report);
+      if (svg) {
+        long t2 = System.nanoTime();
+        writeSvg(s, b, output(f, ".svg"));
+        report.append(String.format(Locale.ROOT, ", svg %.1f ms",
+                                    (System.nanoTime() - t2) / 1e6));
+      }
+      System.out.println(report);
+    }
+    catch (Exception x) {
+      failed.incrementAndGet();
+      System.err.println(f + ": " + x);
+    }
+  }
+
+  /** The file to write the export of f to. */
+  File output(File f, String ext) {
+    String name = f.getName();
+    int dot = name.lastIndexOf('.');
+    if (dot > 0) name = name.substring(0, dot);
+    return new File(out != null ? out : f.getAbsoluteFile().getParentFile(),
+                    name + ext);
+  }
+
+  /**
+   * The bounds of all points of s, and of the wide pens around them, or
+   * an empty box at 0,0 if it has none.
+   */
+  static Rectangle bounds(SegmentStore s) {
+    int n = s.pointCount();
+    if (n == 0) return new Rectangle(0, 0, 1, 1);
+    int x1 = s.x(0), y1 = s.y(0), x2 = x1, y2 = y1;
+    for(int i = 1; i < n; i++) {
+      x1 = Math.min(x1, s.x(i)); x2 = Math.max(x2, s.x(i));
+      y1 = Math.min(y1, s.y(i)); y2 = Math.max(y2, s.y(i));
+    }
+    int m = s.maxWidth() > 1 ? PolylineRenderer.margin(s.maxWidth()) : 0;
+    return new Rectangle(x1 - m, y1 - m, x2 - x1 + 1 + 2 * m,
+                         y2 - y1 + 1 + 2 * m);
+  }
+
+  /** Rasterize s, tile by tile in parallel, and write it as a PNG. */
+  void writePng(SegmentStore s, Rectangle b, File f, StringBuilder report)
+       throws IOException {
+    double k = scale;
+    if (fit > 0) k = Math.min(k, (double) (fit - 2 * MARGIN)
+                                 / Math.max(b.width, b.height));
+    int w = (int) Math.ceil(b.width * k) + 2 * MARGIN;
+    int h = (int) Math.ceil(b.height * k) + 2 * MARGIN;
+    long t0 = System.nanoTime();
+    SegmentIndex index = new SegmentIndex();
+    index.addRange(s, 0, s.pointCount());
+    long t1 = System.nanoTime();
+    BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    int across = (w + tile - 1) / tile, down = (h + tile - 1) / tile;
+    Tile[] tiles = new Tile[across * down];
+    for(int i = 0; i < tiles.length; i++) {
+      int tx = i % across * tile, ty = i / across * tile;
+      tiles[i] = new Tile(s, index, image, b, k,
+                          new Rectangle(tx, ty, Math.min(tile, w - tx),
+                                        Math.min(tile, h - ty)));
+      tiles[i].antialias = antialias;
+    }
+    RecursiveAction.invokeAll(tiles);
+    long t2 = System.nanoTime();
+    ImageIO.write(image, "png", f);
+    long t3 = System.nanoTime();
+
+    long[] times = new long[tiles.length];
+    for(int i = 0; i < tiles.length; i++) times[i] = tiles[i].nanos;
+    Arrays.sort(times);
+    report.append(String.format(Locale.ROOT,
+        ", index %.1f ms, %dx%d px in %d tiles %.1f ms"
+        + " (tile min %.2f median %.2f max %.2f ms), png %.1f ms",
+        (t1 - t0) / 1e6, w, h, tiles.length, (t2 - t1) / 1e6,
+        times[0] / 1e6, times[times.length / 2] / 1e6,
+        times[times.length - 1] / 1e6, (t3 - t2) / 1e6));
+    if (verbose)
+      for(int i = 0; i < tiles.length; i++)
+        report.append(String.format(Locale.ROOT,
+            "%n  tile %d,%d: %d segments, %.2f ms",
+            tiles[i].area.x, tiles[i].area.y, tiles[i].segments,
+            tiles[i].nanos / 1e6));
+  }
+
+  /**
+   * Draws one tile of an image.  The tile gets its own Graphics on its own
+   * part of the image, and its own renderer, so tiles share nothing that
+   * they write.
+   */
+  static class Tile extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final SegmentStore s;
+    final SegmentIndex index;
+    final BufferedImage image;
+    final Rectangle bounds;                // Of the drawing, unscaled.
+    final double scale;
+    final Rectangle area;                  // Of the image, in pixels.
+    boolean antialias = false;
+    long nanos;                            // Time it took,
+    int segments;                          // and the segments it drew.
+
+    Tile(SegmentStore s, SegmentIndex index, BufferedImage image,
+         Rectangle bounds, double scale, Rectangle area) {
+      this.s = s; this.index = index; this.image = image;
+      this.bounds = bounds; this.scale = scale; this.area = area;
+    }
+
+    protected void compute() {
+      long t0 = System.nanoTime();
+      Graphics2D g = image.getSubimage(area.x, area.y, area.width, area.height)
+                          .createGraphics();
+      g.setColor(bg);
+      g.fillRect(0, 0, area.width, area.height);
+      if (antialias)
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                           RenderingHints.VALUE_ANTIALIAS_ON);
+      g.translate(MARGIN - area.x, MARGIN - area.y);
+      g.scale(scale, scale);
+      g.translate(-bounds.x, -bounds.y);
+      Rectangle r = new Rectangle(             // The tile in scribble
+          bounds.x + (int) Math.floor((area.x - MARGIN) / scale) - 1, // space,
+          bounds.y + (int) Math.floor((area.y - MARGIN) / scale) - 1, // a bit
+          (int) Math.ceil(area.width / scale) + 2,                   // larger.
+          (int) Math.ceil(area.height / scale) + 2);
+      IntList which = index.query(s, r);
+      new PolylineRenderer().drawSome(g, s, which);
+      g.dispose();
+      segments = which.size();
+      nanos = System.nanoTime() - t0;
+    }
+  }
+
+  /**
+   * Write s as an SVG drawing, one polyline per run of one pen.  Pens
+   * wider than 1 pixel are round, as on screen.
+   */
+  void writeSvg(SegmentStore s, Rectangle b, File f) throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(f), "UTF-8"), 1 << 16);
+    try {
+      int width = b.width + 2 * MARGIN, height = b.height + 2 * MARGIN;
+      int dx = MARGIN - b.x, dy = MARGIN - b.y;
+      w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      w.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width
+              + "\" height=\"" + height + "\" viewBox=\"0 0 " + width + " "
+              + height + "\">\n");
+      w.write("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+      w.write("<g fill=\"none\" stroke-width=\"1\" stroke-linecap=\"square\""
+              + " stroke-linejoin=\"miter\">\n");
+      int n = s.pointCount();
+      for(int i = 0; i < n - 1; ) {
+        if (s.isMove(i + 1)) { i++; continue; }  // No segment ends at i+1.
+        Color c = s.color(i + 1);                // Points i..j-1 are one run.
+        float pen = s.width(i + 1);
+        int j = i + 2;
+        while (j < n && !s.isMove(j) && s.color(j) == c && s.width(j) == pen)
+          j++;
+        w.write("<polyline stroke=\"#");
+        w.write(String.format("%06x", c.getRGB() & 0xffffff));
+        if (pen != 1)
+          w.write("\" stroke-width=\"" + (pen == (int) pen ? "" + (int) pen : "" + pen)
+                  + "\" stroke-linecap=\"round\""
+                  + " stroke-linejoin=\"round");
+        w.write("\" points=\"");
+        for(int k = i; k < j; k++) {
+          if (k > i) w.write(' ');
+          w.write(Integer.toString(s.x(k) + dx));
+          w.write(',');
+          w.write(Integer.toString(s.y(k) + dy));
+        }
+        w.write("\"/>\n");
+        i = j < n && !s.isMove(j) ? j - 1 : j; // Next run shares a point?
+      }
+      w.write("</g>\n</svg>\n");
+    }
+    finally { w.close(); }
+  }
+}
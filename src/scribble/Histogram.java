@@ -0,0 +1,76 @@
+package scribble;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts non-negative values (usually nanoseconds) in power-of-two
+ * buckets: bucket b holds the values below 2^b that are not in bucket
+ * b-1.  Recording is a few atomic increments, with no allocation and no
+ * lock, so any thread can record while another reads.  Quantiles are
+ * only known to within a factor of two, which is enough to tell a
+ * 2 ms paint from a 40 ms one.
+ */
+class Histogram {
+  protected final AtomicLongArray buckets = new AtomicLongArray(65);
+  protected final AtomicLong count = new AtomicLong();
+  protected final AtomicLong sum = new AtomicLong();
+  protected final AtomicLong max = new AtomicLong();
+
+  void record(long v) {
+    if (v < 0) v = 0;
+    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+    long m = max.get();
+    while (v > m && !max.compareAndSet(m, v)) m = max.get();
+  }
+
+  long getCount() { return count.get(); }
+  long getSum() { return sum.get(); }
+  long getMax() { return max.get(); }
+
+  double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /** An upper bound for the q-th quantile (0 to 1), or 0 if empty. */
+  long quantile(double q) {
+    long n = count.get();
+    if (n == 0) return 0;
+    long rank = (long) Math.ceil(q * n), seen = 0;
+    for(int b = 0; b < buckets.length(); b++) {
+      seen += buckets.get(b);
+      if (seen >= Math.max(rank, 1))
+        return b == 0 ? 0 : Math.min(max.get(), (1L << b) - 1);
+    }
+    return max.get();
+  }
+
+  void reset() {
+    for(int b = 0; b < buckets.length(); b++) buckets.set(b, 0);
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  /** The non-empty buckets, as "<bound:count" pairs in the given unit. */
+  String toString(double unit, String name) {
+    StringBuilder s = new StringBuilder();
+    for(int b = 0; b < buckets.length(); b++) {
+      long n = buckets.get(b);
+      if (n == 0) continue;
+      if (s.length() > 0) s.append(' ');
+      s.append('<').append(b == 64 ? "inf" : trim(Math.pow(2, b) / unit))
+       .append(name).append(':').append(n);
+    }
+    return s.toString();
+  }
+
+  private static String trim(double v) {
+    return v >= 10 || v == Math.floor(v) ? Long.toString(Math.round(v))
+                                         : String.format(Locale.ROOT, "%.2g", v);
+  }
+}
@@ -0,0 +1,183 @@
+package scribble;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * The undo and redo history of a scribble.  Nothing is copied to record
+ * an edit: adding points (a stroke, a paste, a chunk of a load) is
+ * remembered as the range of points it added, which undo truncates from
+ * the store and redo restores; replacing the whole scribble (clear or
+ * load) keeps the old store and its index, and undo swaps them back;
+ * erasing strokes, which only marks them as erased, is remembered as the
+ * ranges of points they cover, which undo unmarks and redo marks again.
+ * Each edit therefore costs time and memory for what it changed, not for
+ * the drawing, except that a replaced store stays alive while its edit
+ * is in the history.
+ * The depth of the history and the memory held by replaced stores are
+ * both limited; the oldest edits are forgotten first.
+ */
+class History {
+  static final int APPEND = 1;
+  static final int REPLACE = 2;
+  static final int ERASE = 3;
+
+  /** One undoable edit. */
+  static class Edit {
+    int type;
+    int from, to;                          // APPEND: the points added.
+    boolean merge;                         // Later appends may join it.
+    SegmentStore oldLines, newLines;       // REPLACE: before and after,
+    SegmentIndex oldIndex, newIndex;       // and the strokes that were
+    ErasedSet oldErased;                   // erased before (none after).
+    ErasedSet strokes;                     // ERASE: the strokes erased,
+    Rectangle bounds;                      // and the area they covered.
+    long bytes;                            // Memory it keeps alive.
+  }
+
+  protected ArrayDeque<Edit> undo = new ArrayDeque<Edit>();
+  protected ArrayList<Edit> redo = new ArrayList<Edit>();
+  protected int maxDepth;
+  protected long maxBytes;
+  protected long bytes = 0;                // Held by the undo edits.
+
+  public History() {
+    this(Integer.getInteger("scribble.undo.depth", 100),
+         Long.getLong("scribble.undo.memory", 64).longValue() << 20);
+  }
+
+  public History(int maxDepth, long maxBytes) {
+    this.maxDepth = maxDepth;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Record that points from..to-1 were added.  If merge is true and the
+   * last edit was a mergeable append ending at from, extend that instead.
+   */
+  void appended(int from, int to, boolean merge) {
+    if (to <= from) return;
+    redo.clear();
+    Edit last = undo.peekLast();
+    if (merge && last != null && last.type == APPEND && last.merge
+        && last.to == from) {
+      last.to = to;
+      return;
+    }
+    Edit e = new Edit();
+    e.type = APPEND;
+    e.from = from; e.to = to; e.merge = merge;
+    push(e);
+  }
+
+  /**
+   * Record that the scribble's store and index were replaced by empty or
+   * compacted ones, with no strokes erased; oldErased were before.
+   */
+  void replaced(SegmentStore oldLines, SegmentIndex oldIndex,
+                ErasedSet oldErased,
+                SegmentStore newLines, SegmentIndex newIndex) {
+    redo.clear();
+    Edit e = new Edit();
+    e.type = REPLACE;
+    e.oldLines = oldLines; e.oldIndex = oldIndex; e.oldErased = oldErased;
+    e.newLines = newLines; e.newIndex = newIndex;
+    e.bytes = oldLines.bytesUsed() + oldErased.bytesUsed();
+    push(e);
+  }
+
+  /**
+   * Record that the strokes in set strokes, which cover area r, were
+   * erased.  If merge is true and the last edit was a mergeable erase,
+   * extend that instead, so that a sweep of the eraser is undone in one
+   * go.
+   */
+  void erased(ErasedSet strokes, Rectangle r, boolean merge) {
+    redo.clear();
+    Edit last = undo.peekLast();
+    if (merge && last != null && last.type == ERASE && last.merge) {
+      bytes -= last.bytes;
+      last.strokes = last.strokes.with(strokes);
+      last.bounds = last.bounds.union(r);
+      last.bytes = last.strokes.bytesUsed();
+      bytes += last.bytes;
+      trim();
+      return;
+    }
+    Edit e = new Edit();
+    e.type = ERASE;
+    e.merge = true;
+    e.strokes = strokes;
+    e.bounds = r;
+    e.bytes = strokes.bytesUsed();
+    push(e);
+  }
+
+  /**
+   * Forget the replace edit that put store newLines in, and every edit
+   * after it, and return it; or return null if it is not in the history.
+   */
+  Edit dropReplace(SegmentStore newLines) {
+    Edit e = null;
+    for(Edit u : undo)
+      if (u.type == REPLACE && u.newLines == newLines) e = u;
+    if (e == null) return null;
+    redo.clear();
+    Edit last;
+    do {
+      last = undo.removeLast();
+      bytes -= last.bytes;
+    } while (last != e);
+    return e;
+  }
+
+  /** Forget the last edit, which must exist, and return it. */
+  Edit dropLast() {
+    Edit e = undo.removeLast();
+    bytes -= e.bytes;
+    return e;
+  }
+
+  private void push(Edit e) {
+    undo.addLast(e);
+    bytes += e.bytes;
+    trim();
+  }
+
+  /** Keep within the depth and memory limits. */
+  private void trim() {
+    while (undo.size() > maxDepth || (bytes > maxBytes && undo.size() > 1))
+      bytes -= undo.removeFirst().bytes;   // Forget the oldest edits.
+  }
+
+  /** Take the edit to undo, or null if there is none. */
+  Edit undo() {
+    Edit e = undo.pollLast();
+    if (e == null) return null;
+    bytes -= e.bytes;
+    e.merge = false;                       // Redone edits stand alone.
+    redo.add(e);
+    return e;
+  }
+
+  /** Take the edit to redo, or null if there is none. */
+  Edit redo() {
+    if (redo.isEmpty()) return null;
+    Edit e = redo.remove(redo.size() - 1);
+    undo.addLast(e);
+    bytes += e.bytes;
+    return e;
+  }
+
+  boolean canUndo() { return !undo.isEmpty(); }
+  boolean canRedo() { return !redo.isEmpty(); }
+
+  void clear() {
+    undo.clear();
+    redo.clear();
+    bytes = 0;
+  }
+
+  long getBytes() { return bytes; }
+}
@@ -0,0 +1,151 @@
+package scribble;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * The input a Scribble view got, as written by a TraceRecorder and
+ * played back by a TraceReplay.  A trace file is
+ *
+ * <pre>
+ *   int    MAGIC ("SCRT")
+ *   byte   VERSION
+ *   varint width and height of the view
+ *   double zoom, then the drawing point at the top left corner, x and y
+ *   varint tool, int ARGB pen color, float pen width
+ *   byte   the ANTIALIAS, RETAINED and PARALLEL flags
+ *   int    length, then the drawing at the start in the ScribbleFile format
+ *   events, each:
+ *     byte    type, with MODIFIERS set if the modifiers changed and
+ *             POPUP if the event opens the popup menu
+ *     varlong microseconds since the event before
+ *     varint  the new modifiers (getModifiersEx), if MODIFIERS is set
+ *     PRESS, RELEASE, DRAG, WHEEL:
+ *             varint zigzag x and y deltas from the mouse event before
+ *     PRESS, RELEASE:  byte the button
+ *     WHEEL:  varint zigzag notches shifted left once, with the low bit
+ *             set if a double of precise rotation follows
+ *     ACTION: byte NO_TOGGLE, TOGGLE_OFF or TOGGLE_ON for check box items,
+ *             varint length, then the action command in UTF-8
+ *     RESIZE: varint width and height
+ *   byte   END
+ * </pre>
+ *
+ * A drag is about 4 bytes.  The start state is all a replay needs to get
+ * to the same drawing from the same input.
+ */
+class InputTrace {
+  static final int MAGIC = 0x53435254;           // "SCRT"
+  static final int VERSION = 1;
+
+  static final int END = 0;                      // Event types.
+  static final int PRESS = 1;
+  static final int RELEASE = 2;
+  static final int DRAG = 3;
+  static final int WHEEL = 4;
+  static final int ACTION = 5;
+  static final int RESIZE = 6;
+  static final int TYPE_MASK = 0x07;
+  static final int MODIFIERS = 0x08;
+  static final int POPUP = 0x10;
+
+  static final int ANTIALIAS = 1, RETAINED = 2, PARALLEL = 4;
+  static final int NO_TOGGLE = 0, TOGGLE_OFF = 1, TOGGLE_ON = 2;
+
+  /** One input event. */
+  static class Event {
+    int type;
+    long time;                             // Nanoseconds since the start.
+    int x, y;                              // RESIZE: width and height.
+    int modifiers;
+    int button;
+    boolean popup;
+    double rotation;                       // WHEEL: precise notches.
+    String command;                        // ACTION.
+    int toggle;
+  }
+
+  int width, height;                       // The view at the start.
+  double zoom, viewX, viewY;
+  int tool;
+  Color color;
+  float penWidth;
+  int flags;
+  SegmentStore drawing;
+  ArrayList<Event> events = new ArrayList<Event>();
+
+  /** The length of the trace, in nanoseconds. */
+  long getDuration() {
+    return events.isEmpty() ? 0 : events.get(events.size() - 1).time;
+  }
+
+  /** Read a trace file. */
+  static InputTrace read(File f) throws IOException {
+    return read(ByteBuffer.wrap(Files.readAllBytes(f.toPath())));
+  }
+
+  /** Decode a trace. */
+  static InputTrace read(ByteBuffer b) throws IOException {
+    try {
+      if (b.getInt() != MAGIC) throw new IOException("not a scribble trace");
+      int version = b.get();
+      if (version != VERSION)
+        throw new IOException("unknown trace version " + version);
+      InputTrace t = new InputTrace();
+      t.width = ScribbleFile.readVarint(b);
+      t.height = ScribbleFile.readVarint(b);
+      t.zoom = b.getDouble();
+      t.viewX = b.getDouble();
+      t.viewY = b.getDouble();
+      t.tool = ScribbleFile.readVarint(b);
+      t.color = new Color(b.getInt(), true);
+      t.penWidth = b.getFloat();
+      t.flags = b.get();
+      int length = b.getInt();
+      ByteBuffer drawing = b.slice();
+      drawing.limit(length);
+      t.drawing = ScribbleFile.read(drawing);
+      b.position(b.position() + length);
+      long time = 0;
+      int x = 0, y = 0, modifiers = 0;
+      for(int type = b.get(); (type & TYPE_MASK) != END; type = b.get()) {
+        Event e = new Event();
+        e.type = type & TYPE_MASK;
+        e.popup = (type & POPUP) != 0;
+        e.time = time += ScribbleFile.readVarlong(b) * 1000;
+        if ((type & MODIFIERS) != 0) modifiers = ScribbleFile.readVarint(b);
+        e.modifiers = modifiers;
+        if (e.type == ACTION) {
+          e.toggle = b.get();
+          byte[] s = new byte[ScribbleFile.readVarint(b)];
+          b.get(s);
+          e.command = new String(s, StandardCharsets.UTF_8);
+        }
+        else if (e.type == RESIZE) {
+          e.x = ScribbleFile.readVarint(b);
+          e.y = ScribbleFile.readVarint(b);
+        }
+        else {
+          e.x = x += ScribbleFile.unzigzag(ScribbleFile.readVarint(b));
+          e.y = y += ScribbleFile.unzigzag(ScribbleFile.readVarint(b));
+          if (e.type == PRESS || e.type == RELEASE) e.button = b.get();
+          if (e.type == WHEEL) {
+            int w = ScribbleFile.readVarint(b);
+            e.rotation = (w & 1) != 0 ? b.getDouble()
+                                      : ScribbleFile.unzigzag(w >>> 1);
+          }
+        }
+        t.events.add(e);
+      }
+      return t;
+    }
+    catch (RuntimeException e) {           // Cut short, or garbage.
+      throw new IOException("bad scribble trace: " + e, e);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package scribble;
+
+import java.util.Arrays;
+
+/** A growable list of ints, without the boxing of an ArrayList. */
+class IntList {
+  protected int[] data;
+  protected int size = 0;
+
+  public IntList() { this(16); }
+  public IntList(int capacity) { data = new int[Math.max(capacity, 1)]; }
+
+  int size() { return size; }
+  int get(int i) { return data[i]; }
+  int last() { return data[size - 1]; }
+
+  void add(int v) {
+    if (size == data.length) data = Arrays.copyOf(data, size * 2);
+    data[size++] = v;
+  }
+
+  void addAll(IntList other) {
+    if (size + other.size > data.length)
+      data = Arrays.copyOf(data, Math.max(size + other.size, size * 2));
+    System.arraycopy(other.data, 0, data, size, other.size);
+    size += other.size;
+  }
+
+  void clear() { size = 0; }
+
+  /** Drop the last element. */
+  int pop() { return data[--size]; }
+
+  /** True if the list, which must be sorted, holds v. */
+  boolean containsSorted(int v) {
+    return Arrays.binarySearch(data, 0, size, v) >= 0;
+  }
+
+  /** Sort the list and remove duplicate values. */
+  void sortUnique() {
+    Arrays.sort(data, 0, size);
+    int n = 0;
+    for(int i = 0; i < size; i++)
+      if (n == 0 || data[i] != data[n - 1]) data[n++] = data[i];
+    size = n;
+  }
+}
@@ -0,0 +1,443 @@
+package scribble;
+
+import java.awt.EventQueue;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to a scribble, so that a drawing
+ * survives a crash.  Each window gets its own slot directory under the
+ * journal directory, holding
+ *
+ * <pre>
+ *   snapshot-G.scribble   the whole scribble at generation G (none for 0)
+ *   journal-G.log         the changes made since that snapshot
+ * </pre>
+ *
+ * A change record is a type byte, the payload length and its CRC32, and
+ * the payload: the stroke or pasted points in the ScribbleFile format,
+ * for an undone addition the number of points that remain, or for strokes
+ * erased or brought back the number of point ranges and their starts and
+ * ends.  Erased strokes are dropped from the drawing once it is replayed.
+ * The event dispatch thread only queues changes; a writer thread appends
+ * every change waiting in the queue in one go (group commit) and forces
+ * the file to disk at most once per sync interval.  Every so many records
+ * it writes a new snapshot and starts a new, empty journal, so recovery
+ * never replays more than one snapshot interval of changes.
+ */
+class Journal implements Runnable {
+  static final int STROKE = 1;                   // Record types.
+  static final int CLEAR = 2;
+  static final int PASTE = 3;
+  static final int SNAPSHOT = 4;                 // Queue-only operations.
+  static final int CLOSE = 5;
+  static final int TRUNCATE = 6;                 // An undo of added points.
+  static final int ERASE = 7;
+  static final int UNERASE = 8;                  // An undo of an erase.
+  static final int EMPTY_SNAPSHOT = 10;          // Bytes in an empty scribble.
+
+  /** One queued operation: a record type and its data, if any. */
+  static class Op {
+    final int type;
+    final Object data;                           // Stroke, SegmentStore,
+                                                 // ErasedSet, State...
+    Op(int type, Object data) { this.type = type; this.data = data; }
+  }
+
+  protected File dir;                            // Our slot directory.
+  protected RandomAccessFile lockFile;           // Held while we use it.
+  protected FileLock lock;
+  protected ScribbleDocument document;           // Where snapshots come from.
+  protected BlockingQueue<Op> queue = new LinkedBlockingQueue<Op>();
+  protected Thread writer;
+  protected volatile boolean failed = false;     // Did the writer give up?
+  protected volatile Scribble view;              // Told if it does.
+
+  protected long syncInterval;                   // Milliseconds between fsyncs.
+  protected int snapshotInterval;                // Records between snapshots.
+  protected int records = 0;                     // Records since the last one.
+
+  // Used only by the writer thread.
+  protected int generation = 0;
+  protected FileOutputStream file;
+  protected DataOutputStream out;
+  protected boolean unsynced = false;
+  protected long lastSync = 0;
+  protected ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  protected CRC32 crc = new CRC32();
+
+  Journal(File dir, RandomAccessFile lockFile, FileLock lock) {
+    this.dir = dir;
+    this.lockFile = lockFile;
+    this.lock = lock;
+    syncInterval = Long.getLong("scribble.journal.sync", 1000).longValue();
+    snapshotInterval = Integer.getInteger("scribble.journal.snapshot", 500);
+  }
+
+  /** The directory holding all journal slots. */
+  static File baseDir() {
+    return new File(System.getProperty("scribble.journal.dir",
+        System.getProperty("user.home") + File.separator + ".scribble"
+        + File.separator + "journal"));
+  }
+
+  /** Is journaling on?  It is unless scribble.journal is "false". */
+  static boolean isEnabled() {
+    return !"false".equals(System.getProperty("scribble.journal"));
+  }
+
+  /**
+   * The slot directories left behind by earlier sessions that still hold
+   * a drawing and that no running program is using.
+   */
+  static File[] recoverable() {
+    ArrayList<File> found = new ArrayList<File>();
+    File[] slots = baseDir().listFiles();
+    for(int i = 0; slots != null && i < slots.length; i++) {
+      Journal j = lock(slots[i]);
+      if (j == null) continue;                   // In use, or not a slot.
+      if (j.hasDrawing()) found.add(slots[i]);
+      j.release();
+    }
+    return found.toArray(new File[found.size()]);
+  }
+
+  /** Lock a slot directory, or return null if that is not possible. */
+  static Journal lock(File dir) {
+    if (!dir.isDirectory() && !dir.mkdirs()) return null;
+    try {
+      RandomAccessFile f = new RandomAccessFile(new File(dir, "lock"), "rw");
+      FileLock l = f.getChannel().tryLock();
+      if (l == null) { f.close(); return null; }
+      return new Journal(dir, f, l);
+    }
+    catch (IOException e) { return null; }
+    catch (java.nio.channels.OverlappingFileLockException e) { return null; }
+  }
+
+  /**
+   * Lock the first free slot directory.  A slot still holding a drawing
+   * from another session is never reused, so it stays recoverable.
+   */
+  static Journal lockFreeSlot() throws IOException {
+    for(int n = 0; n < 1000; n++) {
+      Journal j = lock(new File(baseDir(), "window-" + n));
+      if (j == null) continue;                   // In use by someone else.
+      if (!j.hasDrawing()) return j;
+      j.release();
+    }
+    throw new IOException("no free journal slot in " + baseDir());
+  }
+
+  File snapshotFile(int g) { return new File(dir, "snapshot-" + g + ".scribble"); }
+  File journalFile(int g) { return new File(dir, "journal-" + g + ".log"); }
+
+  /** The generation of the newest complete snapshot, or 0. */
+  int latestGeneration() {
+    int latest = 0;
+    String[] names = dir.list();
+    for(int i = 0; names != null && i < names.length; i++) {
+      String n = names[i];
+      if (!n.startsWith("snapshot-") || !n.endsWith(".scribble")) continue;
+      try {
+        latest = Math.max(latest, Integer.parseInt(
+            n.substring("snapshot-".length(), n.length() - ".scribble".length())));
+      }
+      catch (NumberFormatException e) { }
+    }
+    return latest;
+  }
+
+  /**
+   * Does this slot hold anything worth recovering?  A journal whose
+   * records end in an empty drawing, say with a clear, does not.
+   */
+  boolean hasDrawing() {
+    int g = latestGeneration();
+    long points = g > 0 && snapshotFile(g).length() > EMPTY_SNAPSHOT ? 1 : 0;
+    try {
+      return replay(journalFile(g), null, points) > 0;
+    }
+    catch (IOException e) {                      // Cannot tell: keep it.
+      return points > 0 || journalFile(g).length() > 0;
+    }
+  }
+
+  /**
+   * Rebuild the drawing of this slot into store s: load the newest
+   * snapshot, then replay the changes logged after it, and drop the
+   * strokes they leave erased.
+   */
+  void recover(SegmentStore s) throws IOException {
+    int g = latestGeneration();
+    if (g > 0) s.addAll(ScribbleFile.read(snapshotFile(g)));
+    replay(journalFile(g), s, s.pointCount());
+  }
+
+  /**
+   * Replay the records of journal file log onto store s, which holds
+   * count points, and return how many it holds after them.  If s is null
+   * only the count is followed, a stroke or paste counts as one point,
+   * and erasing is ignored, so a drawing that is all erased still seems
+   * to be there.  A torn record at the end of the journal, from a crash in
+   * mid-write, ends the replay.
+   */
+  private long replay(File log, SegmentStore s, long count) throws IOException {
+    if (!log.exists()) return count;
+    RandomAccessFile f = new RandomAccessFile(log, "r");
+    try {
+      FileChannel ch = f.getChannel();
+      ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      CRC32 check = new CRC32();
+      ErasedSet erased = ErasedSet.NONE;
+      while (b.remaining() >= 9) {
+        int type = b.get();
+        int length = b.getInt();
+        int sum = b.getInt();
+        if (length < 0 || length > b.remaining()) break;   // Torn record.
+        ByteBuffer payload = b.slice();
+        payload.limit(length);
+        check.reset();
+        check.update(payload.duplicate());
+        if ((int) check.getValue() != sum) break;          // Torn record.
+        b.position(b.position() + length);
+        if (type == CLEAR) {
+          count = 0;
+          erased = ErasedSet.NONE;
+          if (s != null) s.clear();
+        }
+        else if (type == TRUNCATE) {
+          count = payload.getInt();
+          erased = erased.truncate((int) count);
+          if (s != null) s.truncate((int) count);
+        }
+        else if (type == ERASE || type == UNERASE) {
+          IntList r = new IntList();
+          for(int k = 2 * payload.getInt(); k > 0; k--) r.add(payload.getInt());
+          erased = type == ERASE ? erased.with(ErasedSet.of(r))
+                                 : erased.without(ErasedSet.of(r));
+        }
+        else if (type == STROKE || type == PASTE) {
+          if (s == null) count++;
+          else {
+            s.addAll(ScribbleFile.read(payload));
+            count = s.pointCount();
+          }
+        }
+        else break;
+      }
+      if (s != null && !erased.isEmpty()) {
+        SegmentStore kept = erased.compact(s);
+        s.clear();
+        s.addAll(kept);
+        count = s.pointCount();
+      }
+    }
+    finally { f.close(); }
+    return count;
+  }
+
+  /**
+   * Start journaling the changes to document d, whose current contents
+   * become the first snapshot.  The document calls this and the methods
+   * below while it is locked.
+   */
+  void start(ScribbleDocument d) {
+    document = d;
+    queue.add(new Op(SNAPSHOT, d.current()));
+    writer = new Thread(this, "scribble-journal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Report a failure of the writer thread in view v's window. */
+  void reportTo(Scribble v) { view = v; }
+
+  /** Log a committed stroke.  The stroke must not change any more. */
+  void stroke(Stroke s) { log(new Op(STROKE, s)); }
+
+  /** Log that the scribble was cleared. */
+  void clear() { log(new Op(CLEAR, null)); }
+
+  /** Log points added by a paste or load.  The store must not change. */
+  void paste(SegmentStore s) { log(new Op(PASTE, s)); }
+
+  /** Log that the scribble was cut back to its first n points. */
+  void truncate(int n) { log(new Op(TRUNCATE, Integer.valueOf(n))); }
+
+  /** Log that the strokes in set e were erased. */
+  void erase(ErasedSet e) { log(new Op(ERASE, e)); }
+
+  /** Log that the strokes in set e were brought back. */
+  void unerase(ErasedSet e) { log(new Op(UNERASE, e)); }
+
+  /**
+   * Log the whole scribble afresh, after a change that cannot be
+   * described as a record, such as undoing a clear.
+   */
+  void snapshot() {
+    if (writer == null || failed) return;
+    records = 0;
+    queue.add(new Op(SNAPSHOT, document.current()));
+  }
+
+  /** Queue a record, and a snapshot if enough records have piled up. */
+  protected void log(Op op) {
+    if (writer == null || failed) return;
+    queue.add(op);
+    if (++records >= snapshotInterval) {
+      records = 0;
+      queue.add(new Op(SNAPSHOT, document.current()));
+    }
+  }
+
+  /**
+   * Stop journaling.  If discard is true the drawing is not wanted any
+   * more and the slot is emptied; otherwise everything queued is written.
+   */
+  void close(boolean discard) {
+    if (writer != null) {
+      queue.add(new Op(CLOSE, Boolean.valueOf(discard)));
+      try { writer.join(5000); }
+      catch (InterruptedException e) { }
+      writer = null;
+    }
+    else if (discard) deleteFiles();
+    release();
+  }
+
+  void release() {
+    try { lock.release(); lockFile.close(); }
+    catch (IOException e) { }
+  }
+
+  /** Remove the snapshots and journals of this slot. */
+  protected void deleteFiles() {
+    File[] files = dir.listFiles();
+    for(int i = 0; files != null && i < files.length; i++)
+      if (!files[i].getName().equals("lock")) files[i].delete();
+  }
+
+  /** The writer thread: append queued records in groups. */
+  public void run() {
+    ArrayList<Op> batch = new ArrayList<Op>();
+    try {
+      while (true) {
+        Op op;
+        if (unsynced) {                          // Wake up for the next fsync.
+          long wait = lastSync + syncInterval - System.currentTimeMillis();
+          op = queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+          if (op == null) { sync(); continue; }
+        }
+        else op = queue.take();
+        batch.add(op);
+        queue.drainTo(batch);                    // Group commit.
+        for(int i = 0; i < batch.size(); i++) {
+          op = batch.get(i);
+          if (op.type == CLOSE) {
+            if (out != null) { out.flush(); sync(); file.close(); }
+            if (((Boolean) op.data).booleanValue()) deleteFiles();
+            return;
+          }
+          if (op.type == SNAPSHOT) compact((ScribbleDocument.State) op.data);
+          else write(op);
+        }
+        batch.clear();
+        out.flush();
+        unsynced = true;
+        if (System.currentTimeMillis() - lastSync >= syncInterval) sync();
+      }
+    }
+    catch (InterruptedException e) { }
+    catch (IOException e) {
+      failed = true;                             // Stop queueing records.
+      final IOException x = e;
+      final Scribble v = view;
+      if (v == null) System.err.println("scribble journal stopped: " + e);
+      else EventQueue.invokeLater(new Runnable() {
+        public void run() {
+          ScribbleIO.error(v, "The journal stopped, so the drawing will not"
+                           + " survive a crash", x);
+        }
+      });
+    }
+  }
+
+  /** Append one record. */
+  protected void write(Op op) throws IOException {
+    buffer.reset();
+    if (op.type == STROKE) {
+      SegmentStore s = new ColumnarSegmentStore();
+      ((Stroke) op.data).appendTo(s);
+      ScribbleFile.write(s, buffer, false);
+    }
+    else if (op.type == PASTE)
+      ScribbleFile.write((SegmentStore) op.data, buffer, false);
+    else if (op.type == TRUNCATE)
+      new DataOutputStream(buffer).writeInt(((Integer) op.data).intValue());
+    else if (op.type == ERASE || op.type == UNERASE) {
+      ErasedSet e = (ErasedSet) op.data;
+      DataOutputStream d = new DataOutputStream(buffer);
+      d.writeInt(e.size());
+      for(int k = 0; k < e.size(); k++) {
+        d.writeInt(e.start(k));
+        d.writeInt(e.end(k));
+      }
+    }
+    crc.reset();
+    crc.update(buffer.toByteArray());
+    out.writeByte(op.type);
+    out.writeInt(buffer.size());
+    out.writeInt((int) crc.getValue());
+    buffer.writeTo(out);
+  }
+
+  protected void sync() throws IOException {
+    if (file != null) file.getChannel().force(false);
+    unsynced = false;
+    lastSync = System.currentTimeMillis();
+  }
+
+  /**
+   * Write the store of state st as the next generation and switch to a
+   * new journal, which starts by erasing the strokes st has erased.  The
+   * snapshot is on disk before the old files go, so a crash at any point
+   * leaves one complete snapshot plus its journal.
+   */
+  protected void compact(ScribbleDocument.State st) throws IOException {
+    SegmentStore s = st.lines;
+    if (generation == 0) generation = latestGeneration();
+    int next = generation + 1;
+    File tmp = new File(dir, "snapshot.tmp");
+    FileOutputStream fos = new FileOutputStream(tmp);
+    try {
+      ScribbleFile.write(s, new BufferedOutputStream(fos), true);
+      fos.getChannel().force(false);
+    }
+    finally { fos.close(); }
+    if (!tmp.renameTo(snapshotFile(next)))
+      throw new IOException("cannot rename " + tmp);
+    if (out != null) { out.flush(); file.close(); }
+    file = new FileOutputStream(journalFile(next));
+    out = new DataOutputStream(new BufferedOutputStream(file));
+    if (!st.erased.isEmpty()) write(new Op(ERASE, st.erased));
+    out.flush();
+    sync();
+    snapshotFile(generation).delete();           // Drop the old generation.
+    journalFile(generation).delete();
+    generation = next;
+  }
+}
@@ -0,0 +1,263 @@
+package scribble;
+
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Counters for finding out why a drawing got slow, shown through JMX as
+ * scribble:type=Metrics (see MetricsMBean) and, if scribble.metrics.log
+ * names a file, written to it every scribble.metrics.interval seconds (10
+ * by default).  The log is rolled over to file.1 when it reaches 1 MB.
+ *
+ * Nothing is counted unless the program runs with -Dscribble.metrics=true.
+ * Every probe is guarded by the constant ENABLED, so when it is false the
+ * JIT drops the probes altogether; when it is true a probe is a call to
+ * System.nanoTime() and an atomic increment or two.
+ *
+ * Model sizes are not counted as edits happen: they are read from the
+ * current state of each live document when someone asks for them.
+ */
+class Metrics implements MetricsMBean {
+  static final boolean ENABLED = Boolean.getBoolean("scribble.metrics");
+  static final long ROLL_BYTES = 1 << 20;           // Log size to roll at.
+  static final long STALL_PROBE_MS = 100;           // How often to time the EDT.
+
+  static final Metrics metrics = new Metrics();
+
+  protected final Histogram paint = new Histogram();  // Nanoseconds.
+  protected final Histogram stall = new Histogram();  // Nanoseconds.
+  protected final AtomicLong drawn = new AtomicLong();
+  protected final AtomicLong skipped = new AtomicLong();
+  protected final AtomicLong mouse = new AtomicLong();
+  protected final AtomicLong saved = new AtomicLong(), saveNanos = new AtomicLong();
+  protected final AtomicLong loaded = new AtomicLong(), loadNanos = new AtomicLong();
+  protected final Set<ScribbleDocument> documents =   // Weakly held.
+      Collections.synchronizedSet(Collections.newSetFromMap(
+          new WeakHashMap<ScribbleDocument, Boolean>()));
+
+  protected volatile double mouseRate = 0;          // Events/s lately,
+  protected long lastMouse = 0, lastSample = System.nanoTime(); // from these.
+  protected volatile boolean probing = false;       // A stall probe is queued.
+  protected ScheduledExecutorService sampler;
+
+  static {
+    if (ENABLED) metrics.start();
+  }
+
+  /** Register the MBean and start sampling. */
+  protected void start() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("scribble:type=Metrics"));
+    }
+    catch (Exception e) {
+      System.err.println("scribble metrics not registered: " + e);
+    }
+    sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "scribble-metrics");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    sampler.scheduleWithFixedDelay(new Runnable() {
+      public void run() { probeStall(); }
+    }, STALL_PROBE_MS, STALL_PROBE_MS, TimeUnit.MILLISECONDS);
+    sampler.scheduleAtFixedRate(new Runnable() {
+      public void run() { sampleRates(); }
+    }, 1, 1, TimeUnit.SECONDS);
+    final String log = System.getProperty("scribble.metrics.log");
+    long interval = Long.getLong("scribble.metrics.interval", 10).longValue();
+    if (log != null)
+      sampler.scheduleAtFixedRate(new Runnable() {
+        public void run() { log(new File(log)); }
+      }, interval, Math.max(1, interval), TimeUnit.SECONDS);
+  }
+
+  // The probes.  Callers check ENABLED first, so that they cost nothing
+  // when it is false.
+
+  static void painted(long nanos) { metrics.paint.record(nanos); }
+
+  /** A paint drew drawn of the total segments, and skipped the rest. */
+  static void drew(long drawn, long total) {
+    metrics.drawn.addAndGet(drawn);
+    metrics.skipped.addAndGet(Math.max(0, total - drawn));
+  }
+
+  static void mouseEvent() { metrics.mouse.incrementAndGet(); }
+
+  static void saved(long bytes, long nanos) {
+    metrics.saved.addAndGet(bytes);
+    metrics.saveNanos.addAndGet(nanos);
+  }
+
+  static void loaded(long bytes, long nanos) {
+    metrics.loaded.addAndGet(bytes);
+    metrics.loadNanos.addAndGet(nanos);
+  }
+
+  /** Count the model size of document d while it lives. */
+  static void watch(ScribbleDocument d) { metrics.documents.add(d); }
+
+  /**
+   * Time how long a task posted now waits for the EDT, unless the last
+   * one is still waiting.  Headless programs have no EDT worth timing,
+   * and would never exit if we kept waking it.
+   */
+  protected void probeStall() {
+    if (probing || GraphicsEnvironment.isHeadless()) return;
+    probing = true;
+    final long posted = System.nanoTime();
+    EventQueue.invokeLater(new Runnable() {
+      public void run() {
+        stall.record(System.nanoTime() - posted);
+        probing = false;
+      }
+    });
+  }
+
+  protected synchronized void sampleRates() {
+    long now = System.nanoTime(), m = mouse.get();
+    mouseRate = (m - lastMouse) * 1e9 / Math.max(1, now - lastSample);
+    lastMouse = m;
+    lastSample = now;
+  }
+
+  // The MBean attributes.
+
+  public long getPaintCount() { return paint.getCount(); }
+  public double getPaintMeanMillis() { return paint.getMean() / 1e6; }
+  public double getPaintP50Millis() { return paint.quantile(0.5) / 1e6; }
+  public double getPaintP99Millis() { return paint.quantile(0.99) / 1e6; }
+  public double getPaintMaxMillis() { return paint.getMax() / 1e6; }
+  public String getPaintHistogram() { return paint.toString(1e6, "ms"); }
+
+  public long getSegmentsDrawn() { return drawn.get(); }
+  public long getSegmentsSkipped() { return skipped.get(); }
+
+  public double getDrawnFraction() {
+    long d = drawn.get(), all = d + skipped.get();
+    return all == 0 ? 0 : (double) d / all;
+  }
+
+  public long getMouseEvents() { return mouse.get(); }
+  public double getMouseEventsPerSecond() { return mouseRate; }
+
+  public double getEdtStallMeanMillis() { return stall.getMean() / 1e6; }
+  public double getEdtStallP99Millis() { return stall.quantile(0.99) / 1e6; }
+  public double getEdtStallMaxMillis() { return stall.getMax() / 1e6; }
+  public String getEdtStallHistogram() { return stall.toString(1e6, "ms"); }
+
+  /** The current stores of the live documents, erased strokes and all. */
+  protected ArrayList<SegmentStore> models() {
+    ArrayList<SegmentStore> m = new ArrayList<SegmentStore>();
+    synchronized (documents) {
+      for(ScribbleDocument d : documents) m.add(d.state().lines);
+    }
+    return m;
+  }
+
+  public int getDocuments() { return documents.size(); }
+
+  public long getModelPoints() {
+    long n = 0;
+    for(SegmentStore s : models()) n += s.pointCount();
+    return n;
+  }
+
+  public long getModelStrokes() {
+    long n = 0;
+    for(SegmentStore s : models()) n += s.pointCount() - s.segmentCount();
+    return n;
+  }
+
+  public long getModelBytes() {
+    long n = 0;
+    for(SegmentStore s : models()) n += s.bytesUsed();
+    return n;
+  }
+
+  public double getBytesPerStroke() {
+    long strokes = getModelStrokes();
+    return strokes == 0 ? 0 : (double) getModelBytes() / strokes;
+  }
+
+  public long getBytesSaved() { return saved.get(); }
+  public long getBytesLoaded() { return loaded.get(); }
+
+  public double getSaveMegabytesPerSecond() {
+    return rate(saved.get(), saveNanos.get());
+  }
+
+  public double getLoadMegabytesPerSecond() {
+    return rate(loaded.get(), loadNanos.get());
+  }
+
+  private static double rate(long bytes, long nanos) {
+    return nanos == 0 ? 0 : bytes * 1e3 / nanos;  // 1e6 bytes per 1e9 ns.
+  }
+
+  public synchronized void reset() {         // With sampleRates().
+    paint.reset();
+    stall.reset();
+    drawn.set(0);
+    skipped.set(0);
+    mouse.set(0);
+    lastMouse = 0;
+    mouseRate = 0;
+    lastSample = System.nanoTime();
+    saved.set(0); saveNanos.set(0);
+    loaded.set(0); loadNanos.set(0);
+  }
+
+  /** One line with the current figures. */
+  String summary() {
+    return String.format(Locale.ROOT,
+        "paints %d mean %.2f ms p99 %.2f ms max %.2f ms; drawn %.1f%%;"
+        + " mouse %.0f/s; edt stall p99 %.2f ms max %.2f ms;"
+        + " model %d points %d strokes %d bytes (%.0f/stroke);"
+        + " save %.1f MB/s load %.1f MB/s",
+        getPaintCount(), getPaintMeanMillis(), getPaintP99Millis(),
+        getPaintMaxMillis(), getDrawnFraction() * 100,
+        getMouseEventsPerSecond(), getEdtStallP99Millis(),
+        getEdtStallMaxMillis(), getModelPoints(), getModelStrokes(),
+        getModelBytes(), getBytesPerStroke(), getSaveMegabytesPerSecond(),
+        getLoadMegabytesPerSecond());
+  }
+
+  /** Append the summary to file f, rolling it over when it gets big. */
+  protected void log(File f) {
+    if (f.length() > ROLL_BYTES) {
+      File old = new File(f.getPath() + ".1");
+      old.delete();
+      f.renameTo(old);
+    }
+    try {
+      Writer w = new FileWriter(f, true);
+      try { w.write(new Date() + " " + summary() + "\n"); }
+      finally { w.close(); }
+    }
+    catch (IOException e) {
+      System.err.println("cannot write " + f + ": " + e);
+    }
+  }
+}
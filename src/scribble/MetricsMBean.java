@@ -0,0 +1,42 @@
+package scribble;
+
+/**
+ * What Metrics shows through JMX, as scribble:type=Metrics.  Times are in
+ * milliseconds; quantiles are upper bounds, good to a factor of two.
+ */
+public interface MetricsMBean {
+  long getPaintCount();
+  double getPaintMeanMillis();
+  double getPaintP50Millis();
+  double getPaintP99Millis();
+  double getPaintMaxMillis();
+  String getPaintHistogram();
+
+  long getSegmentsDrawn();
+  long getSegmentsSkipped();
+  /** Of the segments in the drawing, the fraction that paints drew. */
+  double getDrawnFraction();
+
+  long getMouseEvents();
+  double getMouseEventsPerSecond();
+
+  /** How long tasks waited for the event dispatch thread. */
+  double getEdtStallMeanMillis();
+  double getEdtStallP99Millis();
+  double getEdtStallMaxMillis();
+  String getEdtStallHistogram();
+
+  int getDocuments();
+  long getModelPoints();
+  long getModelStrokes();
+  long getModelBytes();
+  double getBytesPerStroke();
+
+  long getBytesSaved();
+  long getBytesLoaded();
+  double getSaveMegabytesPerSecond();
+  double getLoadMegabytesPerSecond();
+
+  /** Start counting afresh. */
+  void reset();
+}
@@ -0,0 +1,76 @@
+package scribble;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A small table of the pens used in a scribble, each a color and a width,
+ * so that each point only needs to store a byte-sized index instead of a
+ * Color reference.
+ */
+class Palette implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Indices must fit in the low bits of a point's flag byte. */
+  static final int MAX_COLORS = 128;
+
+  protected Color[] colors = new Color[8];
+  protected float[] widths = new float[8];  // Null in old serialized files.
+  protected int size = 0;
+
+  /** Return the index of color c, adding it if it is new. */
+  int indexOf(Color c) { return indexOf(c, 1); }
+
+  /** Return the index of the pen of color c and width w, adding it if new. */
+  int indexOf(Color c, float w) {
+    for(int i = 0; i < size; i++)            // Palettes are tiny, so a
+      if (colors[i].equals(c) && widths[i] == w) // linear search is fastest.
+        return i;
+    if (size == MAX_COLORS)
+      throw new IllegalStateException("too many pens in scribble");
+    if (size == colors.length) {
+      Color[] grown = new Color[colors.length * 2];
+      float[] wider = new float[colors.length * 2];
+      System.arraycopy(colors, 0, grown, 0, size);
+      System.arraycopy(widths, 0, wider, 0, size);
+      colors = grown;
+      widths = wider;
+    }
+    colors[size] = c;
+    widths[size] = w;
+    return size++;
+  }
+
+  Color get(int i) { return colors[i]; }
+  float width(int i) { return widths[i]; }
+
+  /** The width of the widest pen, or 1 if there are none. */
+  float maxWidth() {
+    float w = 1;
+    for(int i = 0; i < size; i++) w = Math.max(w, widths[i]);
+    return w;
+  }
+
+  Palette copy() {
+    Palette p = new Palette();
+    p.colors = colors.clone();
+    p.widths = widths.clone();
+    p.size = size;
+    return p;
+  }
+
+  int size() { return size; }
+
+  /** Scribbles saved before pens had widths drew everything 1 wide. */
+  private void readObject(ObjectInputStream in)
+       throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (widths == null) {
+      widths = new float[colors.length];
+      Arrays.fill(widths, 1);
+    }
+  }
+}
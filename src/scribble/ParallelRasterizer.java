@@ -0,0 +1,297 @@
+package scribble;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Draws 1 pixel wide segments on all processors at once, for repaints
+ * of a big area: after loading or pasting a drawing, or resizing the
+ * window.  The area is cut into bands of rows.  First the segments are
+ * sorted into the bands they cross, each thread taking a share of them;
+ * then each thread draws whole bands straight into an int ARGB image,
+ * which is finally drawn in one go.  Bands do not share pixels, and
+ * within a band the segments are drawn in the order they were made, so
+ * the result does not depend on how the work was shared out.
+ *
+ * The lines are the ones Java2D draws with drawLine, pixel for pixel:
+ * on the k-th step along the major axis of a segment, the line is
+ * floor((2 k minor + major) / (2 major)) pixels along the minor one.
+ * That formula lets a band start a segment at its own first row, where
+ * plain Bresenham would have to step from the segment's start.
+ *
+ * Only what Java2D would draw the same way is done here: opaque colors,
+ * pens 1 pixel wide, no antialiasing, and no transform but a shift by
+ * whole pixels.  draw() returns false otherwise, having drawn nothing.
+ */
+class ParallelRasterizer {
+  static final int MIN_ROWS = 16;                  // Per band, at least.
+  static final long MAX_LENGTH = 1 << 30;          // Longer segments would
+                                                   // overflow the formula.
+  static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  private static ExecutorService pool;             // Shared by all views.
+
+  protected final int threads;
+  protected BufferedImage image;                   // Reused, and clear between draws.
+
+  public ParallelRasterizer() { this(THREADS); }
+
+  public ParallelRasterizer(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  int getThreads() { return threads; }
+
+  static synchronized ExecutorService pool() {
+    if (pool == null)
+      pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        int n = 0;
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "scribble-raster-" + n++);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    return pool;
+  }
+
+  /** True if g draws the way draw() does: thin, aliased and unscaled. */
+  static boolean canDraw(Graphics2D g, SegmentStore s) {
+    if (s.maxWidth() != 1) return false;
+    AffineTransform t = g.getTransform();
+    if ((t.getType() & ~AffineTransform.TYPE_TRANSLATION) != 0
+        || t.getTranslateX() != Math.rint(t.getTranslateX())
+        || t.getTranslateY() != Math.rint(t.getTranslateY())) return false;
+    if (g.getRenderingHint(RenderingHints.KEY_ANTIALIASING)
+        == RenderingHints.VALUE_ANTIALIAS_ON) return false;
+    if (!(g.getStroke() instanceof BasicStroke)) return false;
+    BasicStroke b = (BasicStroke) g.getStroke();
+    return b.getLineWidth() <= 1 && b.getDashArray() == null
+        && AlphaComposite.SrcOver.equals(g.getComposite());
+  }
+
+  /**
+   * Draw the segments of s ending at the ascending point indices in
+   * which into the clip of g.  False, with nothing drawn, if g or s need
+   * something this rasterizer does not do; see canDraw().
+   */
+  boolean draw(Graphics2D g, SegmentStore s, IntList which) {
+    Rectangle clip = g.getClipBounds();
+    if (clip == null || clip.isEmpty() || !canDraw(g, s)) return false;
+    int w = clip.width, h = clip.height;
+    int bands = Math.max(1, Math.min(threads * 4, h / MIN_ROWS));
+    int rows = (h + bands - 1) / bands;
+    int parts = Math.min(threads, Math.max(1, which.size() / 4096));
+    IntList[][] binned = bin(s, which, clip, parts, bands, rows);
+    if (binned == null) return false;               // Something we can't do.
+    if (image == null || image.getWidth() < w || image.getHeight() < h)
+      image = new BufferedImage(Math.max(w, image == null ? 0 : image.getWidth()),
+                                Math.max(h, image == null ? 0 : image.getHeight()),
+                                BufferedImage.TYPE_INT_ARGB_PRE); // Opaque or clear.
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    int stride = image.getWidth();
+    final int[][] drawn = new int[bands][];       // What each band touched.
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for(int b = 0; b < bands; b++) {
+      final int band = b;
+      final int y1 = clip.y + b * rows, y2 = Math.min(y1 + rows, clip.y + h) - 1;
+      final Rectangle area = new Rectangle(clip.x, y1, w, y2 - y1 + 1);
+      final IntList[][] lists = binned;
+      final int[] p = pixels;
+      final int scan = stride;
+      final SegmentStore lines = s;
+      final Rectangle origin = clip;
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+          int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+          int last = -1, x = 0, y = 0;
+          for(int k = 0; k < lists.length; k++) {  // In order: parts hold
+            IntList l = lists[k][band];            // ascending ranges.
+            if (l == null) continue;
+            for(int j = 0; j < l.size(); j++) {
+              int i = l.get(j);
+              if (i != last + 1) { x = lines.x(i-1); y = lines.y(i-1); }
+              int x2 = lines.x(i), y2 = lines.y(i);  // Polylines share ends.
+              line(x, y, x2, y2, lines.color(i).getRGB(), area, origin, p, scan);
+              minX = Math.min(minX, Math.min(x, x2));
+              maxX = Math.max(maxX, Math.max(x, x2));
+              minY = Math.min(minY, Math.min(y, y2));
+              maxY = Math.max(maxY, Math.max(y, y2));
+              last = i; x = x2; y = y2;
+            }
+          }
+          Rectangle r = area.intersection(
+            new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1));
+          if (last >= 0 && !r.isEmpty())
+            drawn[band] = new int[] { r.x, r.y, r.width, r.height };
+          return null;
+        }
+      });
+    }
+    run(tasks);
+    for(int b = 0; b < bands; b++) {          // Copy what was drawn, and
+      int[] r = drawn[b];                     // clear it for the next time.
+      if (r == null) continue;
+      int x = r[0] - clip.x, y = r[1] - clip.y;
+      g.drawImage(image, r[0], r[1], r[0] + r[2], r[1] + r[3],
+                  x, y, x + r[2], y + r[3], null);
+      for(int row = y; row < y + r[3]; row++)
+        Arrays.fill(pixels, row * stride + x, row * stride + x + r[2], 0);
+    }
+    return true;
+  }
+
+  /**
+   * Sort the segments into the bands they cross, in parts run at once;
+   * part k gets the k-th share of which.  Null if a segment has a color
+   * that is not opaque or is too long.
+   */
+  protected IntList[][] bin(final SegmentStore s, final IntList which,
+                            final Rectangle clip, int parts, final int bands,
+                            final int rows) {
+    final IntList[][] binned = new IntList[parts][bands];
+    final boolean[] bad = new boolean[1];
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    int n = which.size();
+    for(int k = 0; k < parts; k++) {
+      final int from = (int) ((long) n * k / parts), to = (int) ((long) n * (k + 1) / parts);
+      final IntList[] mine = binned[k];
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          int cx2 = clip.x + clip.width - 1, cy2 = clip.y + clip.height - 1;
+          for(int j = from; j < to && !bad[0]; j++) {
+            int i = which.get(j);
+            if (s.isMove(i)) continue;
+            int x1 = s.x(i-1), y1 = s.y(i-1), x2 = s.x(i), y2 = s.y(i);
+            if (Math.max(x1, x2) < clip.x || Math.min(x1, x2) > cx2) continue;
+            int ya = Math.max(Math.min(y1, y2), clip.y);
+            int yb = Math.min(Math.max(y1, y2), cy2);
+            if (ya > yb) continue;
+            if (s.color(i).getAlpha() != 255
+                || Math.abs((long) x2 - x1) >= MAX_LENGTH
+                || Math.abs((long) y2 - y1) >= MAX_LENGTH) {
+              bad[0] = true;
+              break;
+            }
+            for(int b = (ya - clip.y) / rows; b <= (yb - clip.y) / rows; b++) {
+              if (mine[b] == null) mine[b] = new IntList();
+              mine[b].add(i);
+            }
+          }
+          return null;
+        }
+      });
+    }
+    run(tasks);
+    return bad[0] ? null : binned;
+  }
+
+  /**
+   * Draw the part of segment (x1, y1)-(x2, y2) that falls in area into
+   * pixels, whose first pixel is the top left one of origin.
+   */
+  static void line(int x1, int y1, int x2, int y2, int rgb, Rectangle area,
+                   Rectangle origin, int[] pixels, int scan) {
+    int ax1 = area.x, ax2 = area.x + area.width - 1;
+    int ay1 = area.y, ay2 = area.y + area.height - 1;
+    int sx = x2 < x1 ? -1 : 1, sy = y2 < y1 ? -1 : 1;
+    if (Math.min(x1, x2) >= ax1 && Math.max(x1, x2) <= ax2
+        && Math.min(y1, y2) >= ay1 && Math.max(y1, y2) <= ay2) {
+      int dx = (x2 - x1) * sx, dy = (y2 - y1) * sy;   // All inside, which is
+      int p = (y1 - origin.y) * scan + (x1 - origin.x); // the usual case.
+      int major = sx, minor = sy * scan;
+      if (dx < dy) {
+        int t = dx; dx = dy; dy = t;
+        major = sy * scan; minor = sx;
+      }
+      int den = Math.max(2 * dx, 1), rem = dx;        // k = 0: num = major.
+      for(int k = 0; k <= dx; k++) {
+        pixels[p] = rgb;
+        p += major;
+        rem += 2 * dy;
+        if (rem >= den) { rem -= den; p += minor; }
+      }
+      return;
+    }
+    long ax = Math.abs((long) x2 - x1), ay = Math.abs((long) y2 - y1);
+    if (ax >= ay) {                                 // Steps along x.
+      long k1 = sx > 0 ? ax1 - (long) x1 : (long) x1 - ax2;
+      long k2 = sx > 0 ? ax2 - (long) x1 : (long) x1 - ax1;
+      long m1 = sy > 0 ? ay1 - (long) y1 : (long) y1 - ay2;  // The rows of
+      long m2 = sy > 0 ? ay2 - (long) y1 : (long) y1 - ay1;  // area, as y steps.
+      m1 = Math.max(m1, 0);
+      m2 = Math.min(m2, ay);
+      if (m1 > m2) return;
+      if (ay > 0) {                                 // First step to reach m1,
+        k1 = Math.max(k1, ceilDiv(2 * ax * m1 - ax, 2 * ay));   // last one
+        k2 = Math.min(k2, ceilDiv(2 * ax * (m2 + 1) - ax, 2 * ay) - 1); // in m2.
+      }
+      k1 = Math.max(k1, 0);
+      k2 = Math.min(k2, ax);
+      if (k1 > k2) return;
+      long num = 2 * k1 * ay + ax, den = Math.max(2 * ax, 1);  // A dot if 0.
+      long m = num / den, rem = num - m * den;       // num is not negative.
+      int x = (int) (x1 + sx * k1), y = (int) (y1 + sy * m);
+      for(long k = k1; k <= k2; k++) {
+        pixels[(y - origin.y) * scan + (x - origin.x)] = rgb;
+        x += sx;
+        rem += 2 * ay;
+        if (rem >= den) { rem -= den; y += sy; }
+      }
+    }
+    else {                                          // Steps along y.
+      long k1 = sy > 0 ? ay1 - (long) y1 : (long) y1 - ay2;
+      long k2 = sy > 0 ? ay2 - (long) y1 : (long) y1 - ay1;
+      k1 = Math.max(k1, 0);
+      k2 = Math.min(k2, ay);
+      if (k1 > k2) return;
+      long num = 2 * k1 * ax + ay, den = 2 * ay;
+      long m = num / den, rem = num - m * den;
+      int x = (int) (x1 + sx * m), y = (int) (y1 + sy * k1);
+      for(long k = k1; k <= k2; k++) {
+        if (x >= ax1 && x <= ax2)
+          pixels[(y - origin.y) * scan + (x - origin.x)] = rgb;
+        y += sy;
+        rem += 2 * ax;
+        if (rem >= den) { rem -= den; x += sx; }
+      }
+    }
+  }
+
+  private static long ceilDiv(long a, long b) { return -Math.floorDiv(-a, b); }
+
+  /** Run the tasks on the pool, or here if there is just one. */
+  private static void run(List<Callable<Object>> tasks) {
+    try {
+      if (tasks.size() == 1) { tasks.get(0).call(); return; }
+      for(Future<Object> f : pool().invokeAll(tasks)) f.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    catch (ExecutionException e) {
+      Throwable t = e.getCause();
+      if (t instanceof RuntimeException) throw (RuntimeException) t;
+      throw new IllegalStateException(t);
+    }
+    catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package scribble;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+
+/**
+ * Draws segments of a SegmentStore antialiased, with round pens, from
+ * Path2D geometry that is built the first time a stroke is drawn and then
+ * kept.  Polylines are cut into pieces of at most PIECE segments which
+ * share their end points, so that a small repaint only strokes the pieces
+ * it touches; the round caps hide the cuts.
+ *
+ * Each piece also has simpler versions for views that are zoomed out.  At
+ * level L, for scales of 1/2^L and less, points within 2^(L-1) pixels of
+ * the line between their neighbours are left out, which is at most half
+ * a pixel on screen.  A level is only built when a view first draws at it.
+ *
+ * The pieces follow the points of the store they were built from, which
+ * only ever grows at the end unless it is truncated or replaced; the
+ * owner calls invalidate() then, and the pieces past that point are
+ * forgotten at every level.
+ */
+class PathRenderer extends PolylineRenderer {
+  static final int PIECE = 64;             // Segments per piece, at most.
+  static final int LEVELS = 6;             // Full detail and 5 simpler.
+
+  protected int pieces = 0;
+  protected int[] firsts = new int[64];    // The point indices a piece
+  protected int[] lasts = new int[64];     // starts and ends at.
+  protected Path2D.Float[][] paths = new Path2D.Float[LEVELS][];
+  protected int covered = 0;               // Points cut into pieces so far.
+  protected Simplifier[] simplifiers = new Simplifier[LEVELS];
+  protected Object antialias, strokeControl; // The Graphics' own hints.
+
+  void drawRange(Graphics g, SegmentStore s, int from, int to) {
+    if (!(g instanceof Graphics2D)) { super.drawRange(g, s, from, to); return; }
+    Graphics2D g2 = (Graphics2D) g;
+    extend(s);
+    begin(g2);
+    int level = level(g2);
+    for(int p = find(Math.max(from, 1), 0); p < pieces && firsts[p] < to - 1; p++)
+      draw(g2, s, p, level);
+    end(g2);
+  }
+
+  void drawSome(Graphics g, SegmentStore s, IntList which) {
+    if (!(g instanceof Graphics2D)) { super.drawSome(g, s, which); return; }
+    Graphics2D g2 = (Graphics2D) g;
+    extend(s);
+    begin(g2);
+    int level = level(g2);
+    int p = 0, drawn = -1;
+    for(int k = 0; k < which.size(); k++) {
+      int i = which.get(k);
+      if (drawn >= 0 && i <= lasts[drawn]) continue;  // Drawn with its piece.
+      p = find(i, p);
+      if (p == pieces) break;
+      if (firsts[p] >= i) continue;                   // Not ours; cannot be.
+      draw(g2, s, p, level);
+      drawn = p;
+    }
+    end(g2);
+  }
+
+  /** Forget the pieces that have points from from on. */
+  void invalidate(int from) {
+    int p = find(from, 0);
+    if (p < pieces) covered = Math.min(covered, firsts[p] + 1);
+    covered = Math.min(covered, from);
+    for(int level = 0; level < LEVELS; level++)
+      if (paths[level] != null)
+        for(int q = p; q < pieces; q++) paths[level][q] = null;
+    pieces = p;
+  }
+
+  protected void begin(Graphics g) {
+    super.begin(g);
+    if (!(g instanceof Graphics2D)) return;  // Drawn as polylines then.
+    width = -1;                            // Even 1 wide gets a round pen.
+    Graphics2D g2 = (Graphics2D) g;
+    antialias = g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+    strokeControl = g2.getRenderingHint(RenderingHints.KEY_STROKE_CONTROL);
+    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                        RenderingHints.VALUE_ANTIALIAS_ON);
+    g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                        RenderingHints.VALUE_STROKE_PURE);
+  }
+
+  protected void end(Graphics g) {
+    if (!(g instanceof Graphics2D)) { super.end(g); return; }
+    Graphics2D g2 = (Graphics2D) g;
+    g2.setStroke(thin);
+    if (antialias != null)
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialias);
+    if (strokeControl != null)
+      g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, strokeControl);
+  }
+
+  /** The level of detail that is enough at the scale g draws at. */
+  static int level(Graphics2D g) {
+    AffineTransform t = g.getTransform();
+    double scale = Math.sqrt(Math.abs(t.getDeterminant()));
+    int level = 0;
+    while (level < LEVELS - 1 && scale * (2 << level) <= 1) level++;
+    return level;
+  }
+
+  /** The first piece from p on that ends at or after point i. */
+  protected int find(int i, int p) {
+    int hi = pieces;
+    while (p < hi) {
+      int mid = (p + hi) >>> 1;
+      if (lasts[mid] < i) p = mid + 1;
+      else hi = mid;
+    }
+    return p;
+  }
+
+  /** Stroke piece p, at the given level of detail. */
+  protected void draw(Graphics2D g, SegmentStore s, int p, int level) {
+    Path2D.Float[] ps = paths[level];
+    if (ps == null) ps = paths[level] = new Path2D.Float[firsts.length];
+    if (ps[p] == null) ps[p] = build(s, p, level);
+    Color c = s.color(lasts[p]);
+    float w = s.width(lasts[p]);
+    if (c != color) g.setColor(color = c);
+    if (w != width) g.setStroke(cachedPen(width = w));
+    g.draw(ps[p]);
+  }
+
+  /** The geometry of piece p at the given level of detail. */
+  protected Path2D.Float build(SegmentStore s, int p, int level) {
+    int a = firsts[p], b = lasts[p];
+    Stroke points = new Stroke(s.color(b), s.width(b), b - a + 1);
+    for(int i = a; i <= b; i++) points.add(s.x(i), s.y(i));
+    if (level > 0) {
+      if (simplifiers[level] == null)
+        simplifiers[level] = new Simplifier(Math.scalb(0.5, level));
+      points = simplifiers[level].simplify(points);
+    }
+    Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, points.size());
+    path.moveTo(points.x(0), points.y(0));
+    for(int i = 1; i < points.size(); i++) path.lineTo(points.x(i), points.y(i));
+    return path;
+  }
+
+  /** Cut the points of s that are not in pieces yet into pieces. */
+  protected void extend(SegmentStore s) {
+    int n = s.pointCount();
+    for(int i = covered; i < n; ) {
+      int a = s.isMove(i) ? i : i - 1;    // Go on from the last piece?
+      int b = i + 1;
+      while (b < n && !s.isMove(b) && b - a < PIECE) b++;
+      if (b - a > 1) add(a, b - 1);       // One point draws nothing.
+      i = b;
+    }
+    covered = Math.max(covered, n);        // s may be an older snapshot.
+  }
+
+  private void add(int first, int last) {
+    if (pieces == firsts.length) {
+      int[] f = new int[pieces * 2], l = new int[pieces * 2];
+      System.arraycopy(firsts, 0, f, 0, pieces);
+      System.arraycopy(lasts, 0, l, 0, pieces);
+      firsts = f;
+      lasts = l;
+      for(int level = 0; level < LEVELS; level++)
+        if (paths[level] != null) {
+          Path2D.Float[] ps = new Path2D.Float[pieces * 2];
+          System.arraycopy(paths[level], 0, ps, 0, pieces);
+          paths[level] = ps;
+        }
+    }
+    firsts[pieces] = first;
+    lasts[pieces] = last;
+    pieces++;
+  }
+}
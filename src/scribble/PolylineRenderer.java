@@ -0,0 +1,122 @@
+package scribble;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+
+/**
+ * Draws segments of a SegmentStore, joining runs of consecutive segments
+ * of one pen into a single drawPolyline call instead of one drawLine
+ * per segment.  Pens 1 pixel wide are drawn with whatever stroke the
+ * Graphics has, as they always were; wider ones with a round pen.  An
+ * instance reuses its coordinate buffers, so it must only be used by one
+ * thread at a time.
+ */
+class PolylineRenderer {
+  protected int[] xs = new int[256];       // The run being collected.
+  protected int[] ys = new int[256];
+  protected int n = 0;
+  protected int last = -2;                 // Store index of its end point.
+  protected Color color;                   // The color set on the Graphics,
+  protected float width;                   // and the pen width of the run.
+  protected java.awt.Stroke thin;          // The Graphics' own stroke.
+  protected BasicStroke pen;               // The last wide one.
+
+  /** How far the pixels of a line of the given width reach past it. */
+  static int margin(float width) {
+    return (int) Math.ceil(width / 2) + 1;   // A pixel for rounding and
+  }                                          // antialiasing too.
+
+  /** A round pen of the given width. */
+  static BasicStroke pen(float width) {
+    return new BasicStroke(width, BasicStroke.CAP_ROUND,
+                           BasicStroke.JOIN_ROUND);
+  }
+
+  /** The same, but the last one again if the width is the same. */
+  protected BasicStroke cachedPen(float width) {
+    if (pen == null || pen.getLineWidth() != width) pen = pen(width);
+    return pen;
+  }
+
+  /** Draw the segments ending at points from..to-1 of store s. */
+  void drawRange(Graphics g, SegmentStore s, int from, int to) {
+    begin(g);
+    for(int i = Math.max(from, 1); i < to; i++)
+      if (!s.isMove(i)) segment(g, s, i);
+    end(g);
+  }
+
+  /**
+   * Draw the segments ending at points from..to-1 of store s, except those
+   * of erased strokes: the ranges between them, each as one drawRange().
+   */
+  void drawRange(Graphics g, SegmentStore s, int from, int to,
+                 ErasedSet erased) {
+    for(int k = erased.indexAfter(from);
+        k < erased.size() && erased.start(k) < to; k++) {
+      if (erased.start(k) > from) drawRange(g, s, from, erased.start(k));
+      from = Math.max(from, erased.end(k));
+    }
+    if (from < to) drawRange(g, s, from, to);
+  }
+
+  /** Draw the segments ending at the (ascending) point indices in which. */
+  void drawSome(Graphics g, SegmentStore s, IntList which) {
+    begin(g);
+    for(int k = 0; k < which.size(); k++) segment(g, s, which.get(k));
+    end(g);
+  }
+
+  /**
+   * Forget whatever was kept about the points of the store from from on,
+   * which were removed; this renderer keeps nothing.
+   */
+  void invalidate(int from) { }
+
+  protected void begin(Graphics g) {
+    color = null;
+    width = 1;
+    thin = g instanceof Graphics2D ? ((Graphics2D) g).getStroke() : null;
+  }
+
+  /** Draw what is left, and give the Graphics its stroke back. */
+  protected void end(Graphics g) {
+    flush(g);
+    if (width != 1 && thin != null) ((Graphics2D) g).setStroke(thin);
+  }
+
+  /** Add segment (i-1, i) to the run, drawing the run first if it breaks. */
+  protected void segment(Graphics g, SegmentStore s, int i) {
+    Color c = s.color(i);
+    float w = s.width(i);
+    if (n > 0 && (i != last + 1 || c != color || w != width)) flush(g);
+    if (n == 0) {                          // Start a run at (i-1).
+      if (c != color) g.setColor(color = c);
+      if (w != width && thin != null)
+        ((Graphics2D) g).setStroke(w == 1 ? thin : cachedPen(w));
+      width = w;
+      put(s.x(i-1), s.y(i-1));
+    }
+    put(s.x(i), s.y(i));
+    last = i;
+  }
+
+  private void put(int x, int y) {
+    if (n == xs.length) {
+      int[] nx = new int[n * 2], ny = new int[n * 2];
+      System.arraycopy(xs, 0, nx, 0, n);
+      System.arraycopy(ys, 0, ny, 0, n);
+      xs = nx; ys = ny;
+    }
+    xs[n] = x; ys[n] = y; n++;
+  }
+
+  /** Draw the collected run, if any. */
+  protected void flush(Graphics g) {
+    if (n > 1) g.drawPolyline(xs, ys, n);
+    n = 0;
+    last = -2;
+  }
+}
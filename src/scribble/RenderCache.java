@@ -0,0 +1,120 @@
+package scribble;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * An off-screen image holding the strokes a Scribble has already
+ * committed.  New segments are drawn into the image as they arrive, so
+ * a repaint is just a copy of the image, however long the history is.
+ * Only clearing or loading a scribble (or resizing the component, or
+ * zooming it) makes the image stale, and the next repaint then draws
+ * everything once more.  Panning by whole pixels moves the image instead,
+ * and only the strips that come into view are drawn.
+ */
+class RenderCache {
+  protected BufferedImage image;       // The retained strokes,
+  protected BufferedImage spare;       // and room to move them when panning.
+  protected AffineTransform view;      // The view they were drawn for.
+  protected boolean valid = false;     // Does image match the store?
+  protected long hits = 0;             // Repaints served from the image,
+  protected long misses = 0;           // and those that had to rebuild it.
+
+  /** Paint scribble s by copying the image, rebuilding it first if stale. */
+  void paint(Graphics g, Scribble s) {
+    int w = s.getWidth(), h = s.getHeight();
+    if (w <= 0 || h <= 0) return;
+    AffineTransform v = s.getView();
+    if (valid && image != null && image.getWidth() == w
+        && image.getHeight() == h && !v.equals(view)) valid = scroll(v, s);
+    if (!valid || image == null
+        || image.getWidth() != w || image.getHeight() != h) {
+      misses++;
+      if (image == null || image.getWidth() != w || image.getHeight() != h)
+        image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+      view = v;
+      draw(new Rectangle(0, 0, w, h), s);   // Draw the whole history once.
+      valid = true;
+    }
+    else hits++;
+    g.drawImage(image, 0, 0, null);
+  }
+
+  /**
+   * Move the image by the whole pixels the view moved, and draw the strips
+   * that came into view.  False if the view moved some other way.
+   */
+  protected boolean scroll(AffineTransform v, Scribble s) {
+    if (view == null || v.getScaleX() != view.getScaleX()) return false;
+    double tx = v.getTranslateX() - view.getTranslateX();
+    double ty = v.getTranslateY() - view.getTranslateY();
+    int w = image.getWidth(), h = image.getHeight();
+    int dx = (int) Math.rint(tx), dy = (int) Math.rint(ty);
+    if (Math.abs(dx - tx) > 1e-6 || Math.abs(dy - ty) > 1e-6  // Rounding
+        || Math.abs(dx) >= w || Math.abs(dy) >= h)         // errors only.
+      return false;
+    if (spare == null || spare.getWidth() != w || spare.getHeight() != h)
+      spare = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D ig = spare.createGraphics();
+    ig.setComposite(AlphaComposite.Clear);
+    ig.fillRect(0, 0, w, h);
+    ig.setComposite(AlphaComposite.Src);
+    ig.drawImage(image, dx, dy, null);
+    ig.dispose();
+    BufferedImage old = image;
+    image = spare;
+    spare = old;
+    view = v;
+    if (dx > 0) draw(new Rectangle(0, 0, dx, h), s);
+    if (dx < 0) draw(new Rectangle(w + dx, 0, -dx, h), s);
+    if (dy > 0) draw(new Rectangle(0, 0, w, dy), s);
+    if (dy < 0) draw(new Rectangle(0, h + dy, w, -dy), s);
+    return true;
+  }
+
+  /** Composite the segments ending at points from..to-1 into the image. */
+  void addRange(SegmentStore lines, int from, int to, PolylineRenderer r) {
+    Graphics2D ig = createGraphics();
+    if (ig == null) return;            // Will be redrawn in full anyway.
+    ig.transform(view);
+    r.drawRange(ig, lines, from, to);
+    ig.dispose();
+  }
+
+  /** A Graphics drawing into the retained image, or null if it is stale. */
+  Graphics2D createGraphics() {
+    return valid ? image.createGraphics() : null;
+  }
+
+  /** Draw area r of the drawing afresh from the scribble's store. */
+  void redraw(Rectangle r, Scribble s) {
+    if (!valid) return;
+    Rectangle p = view.createTransformedShape(r).getBounds();
+    p.grow(1, 1);                      // The image's own view, which the
+    draw(p, s);                        // scribble's may have left.
+  }
+
+  /** Draw pixels r of the image afresh from the scribble's store. */
+  protected void draw(Rectangle r, Scribble s) {
+    Graphics2D ig = image.createGraphics();
+    ig.setComposite(AlphaComposite.Clear);
+    ig.fillRect(r.x, r.y, r.width, r.height);
+    ig.setComposite(AlphaComposite.SrcOver);
+    ig.setClip(r);
+    ig.transform(view);
+    s.paintLines(ig);
+    ig.dispose();
+  }
+
+  /** Forget the retained strokes; the next paint redraws them all. */
+  void invalidate() {
+    valid = false;
+  }
+
+  long getHits() { return hits; }
+  long getMisses() { return misses; }
+}
@@ -8,15 +8,24 @@ package scribble;
 // WITHOUT WARRANTY of any kind either expressed or implied.
 
 // Updated to Swing by Konstantin L\uFFFDufer <laufer@acm.org> July 2002
+import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Polygon;
 import java.awt.PrintJob;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.ClipboardOwner;
 import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.FlavorMap;
+import java.awt.datatransfer.SystemFlavorMap;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.ActionEvent;
@@ -24,39 +33,73 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
 import java.awt.print.PageFormat;
 import java.awt.print.Printable;
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
+import javax.swing.AbstractAction;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComponent;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 
 /**
  * This class is a custom component that supports scribbling.  It also has
  * a popup menu that allows the scribble color to be set and provides access
  * to printing, cut-and-paste, and file loading and saving facilities.
  * Note that it extends Component rather than Canvas, making it "lightweight."
+ *
+ * The component is a window on a drawing with no edges: the wheel scrolls
+ * it (sideways with shift), dragging with the middle button pans it, and
+ * ctrl and the wheel zooms it about the pointer.  Zoomed out to half size
+ * or less, the drawing is shown from a TilePyramid.
+ *
+ * Besides the pen there are tools to select strokes, by clicking near
+ * one or by dragging a rectangle or a lasso around them (with shift, to
+ * add to the selection), and an eraser that takes out whole strokes.
+ * Copy and cut take the selection if there is one, and Delete erases it.
+ * Finding the strokes is left to a StrokeQuery.
+ *
+ * The input of a view can be recorded to a file by a TraceRecorder, from
+ * the popup menu or with -Dscribble.trace=file, and played back by a
+ * TraceReplay to see how fast the view keeps up with it.
  */
 class Scribble extends JComponent
-    implements ActionListener, MouseListener, MouseMotionListener, Printable {
-    
-    protected short last_x, last_y;                // Coordinates of last click.
-    protected short first_x, first_y;
+    implements ActionListener, MouseListener, MouseMotionListener,
+               MouseWheelListener, Printable, ScribbleDocument.Listener {
+    static final double MIN_ZOOM = Math.scalb(1.0, -TilePyramid.LEVELS);
+    static final double MAX_ZOOM = 64;
+    static final double ZOOM_STEP = Math.sqrt(2);  // Per wheel notch.
+    static final int SCROLL_STEP = 48;             // Pixels per wheel notch.
+    static final int PARALLEL_AREA = 256 * 256;    // Pixels worth sharing out.
+    static final int PEN = 0, SELECT = 1, LASSO = 2, ERASER = 3; // Tools.
+    static final String[] TOOLS = { "Pen", "Select", "Lasso", "Eraser" };
+    static final int HIT_DISTANCE = 4;             // Screen pixels a click
+                                                   // may miss a stroke by.
+    static final int ERASER_RADIUS = 6;            // Screen pixels.
+    static final Color HIGHLIGHT = new Color(0x33, 0x99, 0xff, 0x80);
+
+    protected int last_x, last_y;                  // Coordinates of last click.
+    protected int first_x, first_y;
     short width, height;
     Point point=new Point();
 
@@ -66,25 +109,64 @@ class Scribble extends JComponent
     final static Color red = Color.red; 
     final static Color white = Color.white;
 
-    protected ArrayList lines = new ArrayList(256);  // Store the scribbles.
+    protected ScribbleDocument document;           // The drawing we show.
+    protected RenderCache cache = null;             // Retained image, if any.
+    protected PolylineRenderer renderer = new PolylineRenderer();
+    protected ParallelRasterizer raster = null;     // For big repaints, if on.
+    protected DrawBatcher batcher;                  // Draws new input per frame.
+    protected Stroke stroke = null;                 // The stroke being drawn.
+    protected Simplifier simplifier = new Simplifier(); // Thins out strokes.
     protected Color current_color = Color.black;   // Current drawing color.
+    protected float current_width = 1;              // And pen width.
     protected JPopupMenu popup;                     // The popup menu.
     protected JFrame frame;                         // The frame we are within.
+    protected double zoom = 1;                      // Screen pixels per drawing
+    protected double view_x = 0, view_y = 0;        // pixel; drawing point at 0,0.
+    protected TilePyramid pyramid = null;           // Made when zoomed out.
+    protected boolean panning = false;              // Dragging the view?
+    protected int tool = PEN;                       // What dragging does.
+    protected IntList selection = new IntList();    // Starts of the selected
+    protected Rectangle selection_bounds = null;    // strokes, and their area.
+    protected boolean selecting = false;            // Dragging a rectangle,
+    protected Polygon lasso = null;                 // or a lasso,
+    protected boolean erasing = false;              // or the eraser,
+    protected boolean erased = false;               // which took something.
+    protected TraceRecorder recorder = null;        // Records input, if on.
+    protected PaintListener paint_listener = null;  // Told about paints.
+    protected Clipboard clipboard = null;           // The system's, if null.
+
+    /** Told when a Scribble has painted itself; see TraceReplay */
+    interface PaintListener {
+      /** A paint ran from start to end, in System.nanoTime() */
+      void painted(Scribble s, long start, long end);
+    }
     
     /** This constructor requires a Frame and a desired size */
     public Scribble(JFrame frame, int width, int height) {
+        this(frame, width, height, new ScribbleDocument());
+    }
+
+    /** Create another view on a document, which is not copied */
+    public Scribble(JFrame frame, int width, int height,
+                    ScribbleDocument document) {
         this.frame = frame;
+        this.document = document;
         this.setPreferredSize(new Dimension(width, height));
-        
+        document.addListener(this);
+
         this.addMouseListener(this);
         this.addMouseMotionListener(this);
+        this.addMouseWheelListener(this);
+        this.batcher = new DrawBatcher(this);
 
     // Create the popup menu using a loop.  Note the separation of menu
     // "action command" string from menu label.  Good for internationalization.
     String[] labels = new String[] {
-      "Clear", "Print", "Save", "Load", "Cut", "Copy", "Paste" };
+      "Clear", "Print", "Save", "Load", "Cut", "Copy", "Paste", "Delete",
+      "Undo", "Redo", "Zoom In", "Zoom Out", "Actual Size" };
     String[] commands = new String[] {
-      "clear", "print", "save", "load", "cut", "copy", "paste" };
+      "clear", "print", "save", "load", "cut", "copy", "paste", "delete",
+      "undo", "redo", "zoomin", "zoomout", "zoomreset" };
     popup = new JPopupMenu();                   // Create the menu
     for(int i = 0; i < labels.length; i++) {
       JMenuItem mi = new JMenuItem(labels[i]);   // Create a menu item.
@@ -101,15 +183,79 @@ class Scribble extends JComponent
       mi.addActionListener(this);
       colors.add(mi);
     }
+    JMenu widths = new JMenu("Width");           // Pen widths, likewise.
+    popup.add(widths);
+    String[] widthnames = new String[] { "1", "2", "4", "8", "16" };
+    for(int i = 0; i < widthnames.length; i++) {
+      JMenuItem mi = new JMenuItem(widthnames[i] + " px");
+      mi.setActionCommand("width " + widthnames[i]);
+      mi.addActionListener(this);
+      widths.add(mi);
+    }
+    JMenu tools = new JMenu("Tool");             // And tools.
+    popup.add(tools);
+    for(int i = 0; i < TOOLS.length; i++) {
+      JMenuItem mi = new JMenuItem(TOOLS[i]);
+      mi.setActionCommand("tool " + i);
+      mi.addActionListener(this);
+      tools.add(mi);
+    }
+    JCheckBoxMenuItem smooth = new JCheckBoxMenuItem("Antialiasing");
+    smooth.setActionCommand("antialias");     // Smooth, cached paths.
+    smooth.setSelected(Boolean.getBoolean("scribble.antialias"));
+    smooth.addActionListener(this);
+    popup.add(smooth);
+    setAntialiased(smooth.isSelected());
+    JCheckBoxMenuItem retained = new JCheckBoxMenuItem("Retained Rendering");
+    retained.setActionCommand("retained");    // Toggle the off-screen cache.
+    retained.setSelected(Boolean.getBoolean("scribble.retained"));
+    retained.addActionListener(this);
+    popup.add(retained);
+    setRetained(retained.isSelected());
+    JCheckBoxMenuItem parallel = new JCheckBoxMenuItem("Parallel Rendering");
+    parallel.setActionCommand("parallel");    // Big repaints on all cores.
+    parallel.setSelected(Boolean.getBoolean("scribble.parallel"));
+    parallel.addActionListener(this);
+    popup.add(parallel);
+    setParallel(parallel.isSelected());
+    JCheckBoxMenuItem record = new JCheckBoxMenuItem("Record Input...");
+    record.setActionCommand("record");        // Write a trace to replay.
+    record.addActionListener(this);
+    popup.add(record);
+    // Undo and redo also have the usual keys.
+    bindKey("ctrl Z", "undo");
+    bindKey("ctrl Y", "redo");
+    bindKey("ctrl EQUALS", "zoomin");
+    bindKey("ctrl MINUS", "zoomout");
+    bindKey("ctrl 0", "zoomreset");
+    bindKey("DELETE", "delete");
+    bindKey("ESCAPE", "deselect");
     // Finally, register the popup menu with the component it appears over
     this.add(popup);
   }
 
+  /** Make a key anywhere in our window invoke one of our action commands */
+  protected void bindKey(String key, final String command) {
+    getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(key),
+                                            command);
+    getActionMap().put(command, new AbstractAction(command) {
+      public void actionPerformed(ActionEvent e) {
+        Scribble.this.actionPerformed(new ActionEvent(Scribble.this,
+            ActionEvent.ACTION_PERFORMED, command));
+      }
+    });
+  }
+
   /** This is the ActionListener method invoked by the popup menu items */
   public void actionPerformed(ActionEvent event) {
     // Get the "action command" of the event, and dispatch based on that.
     // This method calls a lot of the interesting methods in this class.
     String command = event.getActionCommand();
+    if (command.equals("record")) {
+      record((JCheckBoxMenuItem) event.getSource());
+      return;
+    }
+    if (recorder != null) recorder.action(event);
     if (command.equals("clear")) clear();
     else if (command.equals("print")) print();
     else if (command.equals("save")) save();
@@ -117,45 +263,528 @@ class Scribble extends JComponent
     else if (command.equals("cut")) cut();
     else if (command.equals("copy")) copy();
     else if (command.equals("paste")) paste();
+    else if (command.equals("delete")) deleteSelection();
+    else if (command.equals("deselect")) select(new IntList(), false);
+    else if (command.equals("undo")) undo();
+    else if (command.equals("redo")) redo();
+    else if (command.equals("zoomin"))
+      zoomAbout(getWidth() / 2, getHeight() / 2, ZOOM_STEP);
+    else if (command.equals("zoomout"))
+      zoomAbout(getWidth() / 2, getHeight() / 2, 1 / ZOOM_STEP);
+    else if (command.equals("zoomreset")) setView(1, view_x, view_y);
+    else if (command.equals("retained"))
+      setRetained(((JCheckBoxMenuItem)event.getSource()).isSelected());
+    else if (command.equals("parallel"))
+      setParallel(((JCheckBoxMenuItem)event.getSource()).isSelected());
+    else if (command.equals("antialias"))
+      setAntialiased(((JCheckBoxMenuItem)event.getSource()).isSelected());
+    else if (command.startsWith("width "))
+      current_width = Float.parseFloat(command.substring(6));
+    else if (command.startsWith("tool "))
+      setTool(Integer.parseInt(command.substring(5)));
     else if (command.equals("Black")) current_color = Color.black;
     else if (command.equals("Red")) current_color = Color.red;
     else if (command.equals("Green")) current_color = Color.green;
     else if (command.equals("Blue")) current_color = Color.blue;
   }
 
-  /** Draw all the saved lines of the scribble, in the appropriate colors */
+  /**
+   * Turn retained rendering on or off.  When on, committed strokes are
+   * kept in an off-screen image and repaints just copy that image.
+   */
+  public void setRetained(boolean on) {
+    cache = on ? new RenderCache() : null;
+    repaint();
+  }
+
+  public boolean isRetained() { return cache != null; }
+
+  /**
+   * Turn antialiasing on or off.  When on, strokes are drawn smooth with
+   * round pens, from geometry that PathRenderer builds once and keeps;
+   * when off, as plain polylines, which is faster.
+   */
+  public void setAntialiased(boolean on) {
+    renderer = on ? new PathRenderer() : new PolylineRenderer();
+    if (cache != null) cache.invalidate();
+    if (pyramid != null) pyramid.reset(on);
+    repaint();
+  }
+
+  public boolean isAntialiased() { return renderer instanceof PathRenderer; }
+
+  /**
+   * Turn parallel rendering on or off.  When on, repaints of a big area
+   * without antialiasing or zoom are drawn by a ParallelRasterizer on all
+   * processors, with the same pixels as otherwise.
+   */
+  public void setParallel(boolean on) {
+    raster = on ? new ParallelRasterizer() : null;
+  }
+
+  public boolean isParallel() { return raster != null; }
+
+  /** The width of the pen new strokes are drawn with */
+  public void setPenWidth(float width) { current_width = width; }
+
+  /** The color of the pen new strokes are drawn with */
+  public void setPenColor(Color color) { current_color = color; }
+
+  /** Make dragging draw (PEN), select (SELECT, LASSO) or erase (ERASER) */
+  public void setTool(int tool) {
+    commitStroke();
+    this.tool = tool;
+    setCursor(Cursor.getPredefinedCursor(tool == PEN ? Cursor.DEFAULT_CURSOR
+                                                     : Cursor.CROSSHAIR_CURSOR));
+  }
+
+  public int getTool() { return tool; }
+
+  /**
+   * Select the given strokes of the document as it is now, named by the
+   * points they start at in ascending order; or, if add is true, add them
+   * to the selection.
+   */
+  public void select(IntList strokes, boolean add) {
+    if (add) {
+      IntList all = new IntList(selection.size() + strokes.size());
+      all.addAll(selection);
+      all.addAll(strokes);
+      all.sortUnique();
+      strokes = all;
+    }
+    if (selection_bounds != null) repaintDrawing(selection_bounds);
+    selection = strokes;
+    selection_bounds = document.state().strokes().bounds(strokes);
+    if (selection_bounds != null) repaintDrawing(selection_bounds);
+  }
+
+  /** The starts of the selected strokes, which must not be changed */
+  IntList getSelection() { return selection; }
+
+  /**
+   * Show the drawing at the given zoom (screen pixels per drawing pixel),
+   * with its point (x, y) at the top left corner.
+   */
+  public void setView(double zoom, double x, double y) {
+    this.zoom = Math.max(MIN_ZOOM, Math.min(zoom, MAX_ZOOM));
+    view_x = x;
+    view_y = y;
+    repaint();
+  }
+
+  public double getZoom() { return zoom; }
+
+  /** Zoom by factor, keeping the drawing point under (sx, sy) where it is */
+  public void zoomAbout(int sx, int sy, double factor) {
+    double z = Math.max(MIN_ZOOM, Math.min(zoom * factor, MAX_ZOOM));
+    setView(z, view_x + sx / zoom - sx / z, view_y + sy / zoom - sy / z);
+  }
+
+  /** Move the drawing dx, dy screen pixels */
+  public void panBy(int dx, int dy) {
+    setView(zoom, view_x - dx / zoom, view_y - dy / zoom);
+  }
+
+  /** The transform from drawing to screen coordinates */
+  AffineTransform getView() {
+    return new AffineTransform(zoom, 0, 0, zoom, -view_x * zoom, -view_y * zoom);
+  }
+
+  /** The drawing coordinates of screen point (x, y) */
+  int toDrawingX(int x) { return (int) Math.floor(view_x + x / zoom); }
+  int toDrawingY(int y) { return (int) Math.floor(view_y + y / zoom); }
+
+  /** The screen pixels that area r of the drawing covers */
+  Rectangle toScreen(Rectangle r) {
+    int x1 = (int) Math.floor((r.x - view_x) * zoom);
+    int y1 = (int) Math.floor((r.y - view_y) * zoom);
+    int x2 = (int) Math.ceil((r.x + (double) r.width - view_x) * zoom);
+    int y2 = (int) Math.ceil((r.y + (double) r.height - view_y) * zoom);
+    return new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+  }
+
+  /** Repaint the part of the screen showing area r of the drawing */
+  void repaintDrawing(Rectangle r) { repaint(toScreen(r)); }
+
+  /** The retained image cache, or null if retained rendering is off */
+  RenderCache getRenderCache() { return cache; }
+
+  /** The batcher that flushes mouse input to the screen */
+  DrawBatcher getBatcher() { return batcher; }
+
+  /** The simplifier applied to new, pasted and loaded strokes */
+  Simplifier getSimplifier() { return simplifier; }
+
+  /** The document this component shows */
+  ScribbleDocument getDocument() { return document; }
+
+  /** Tell l about every paint, or nobody if l is null */
+  void setPaintListener(PaintListener l) { paint_listener = l; }
+
+  /** Copy and paste through c instead of the system clipboard */
+  void setClipboard(Clipboard c) { clipboard = c; }
+
+  protected Clipboard getClipboard() {
+    return clipboard != null ? clipboard : getToolkit().getSystemClipboard();
+  }
+
+  /**
+   * Record the input of this view, and its state now, to trace file f
+   * until stopRecording(); see TraceRecorder.
+   */
+  public void startRecording(File f) throws IOException {
+    stopRecording();
+    commitStroke();              // Start from a quiet state.
+    recorder = new TraceRecorder(this, f);
+  }
+
+  /** Stop recording input, and close the trace */
+  public void stopRecording() {
+    if (recorder != null) recorder.close();
+    recorder = null;
+  }
+
+  public boolean isRecording() { return recorder != null; }
+
+  /** Start or stop recording as item says, asking where to record to */
+  protected void record(JCheckBoxMenuItem item) {
+    if (!item.isSelected()) { stopRecording(); return; }
+    JFileChooser f = new JFileChooser();
+    if (f.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+      item.setSelected(false);
+      return;
+    }
+    try {
+      startRecording(f.getSelectedFile());
+    }
+    catch (IOException e) {
+      item.setSelected(false);
+      ScribbleIO.error(this, "Cannot record to " + f.getSelectedFile(), e);
+    }
+  }
+
+  /** Stop showing the document, which other views may go on editing */
+  void dispose() {
+    stopRecording();
+    commitStroke();
+    document.removeListener(this);
+    if (pyramid != null) pyramid.close();
+  }
+
+  /**
+   * Called by the document, on the thread that changed it, after any view
+   * changed it.  Only the area that changed is redrawn.
+   */
+  public void documentChanged(ScribbleDocument d,
+                              final ScribbleDocument.Change c) {
+    if (!EventQueue.isDispatchThread()) {
+      EventQueue.invokeLater(new Runnable() {
+        public void run() { documentChanged(document, c); }
+      });
+      return;
+    }
+    if (pyramid != null) pyramid.changed(c);
+    if (c.type != ScribbleDocument.Change.APPENDED && selection.size() > 0)
+      select(new IntList(), false);                  // Strokes have moved.
+    if (c.type == ScribbleDocument.Change.APPENDED) {
+      if (c.bounds == null) return;                  // Nothing was added.
+      if (cache == null) repaintDrawing(c.bounds);
+      else if (c.lines == document.state().lines) {  // Still current, so
+        cache.addRange(c.lines, c.from, c.to, renderer); // just add them.
+        repaintDrawing(c.bounds);
+      }
+      else changed(c.bounds);    // Arrived late: redraw from what is now.
+    }
+    else if (c.type == ScribbleDocument.Change.REMOVED) {
+      renderer.invalidate(c.from);                   // Points from on went.
+      changed(c.bounds);
+    }
+    else {
+      renderer.invalidate(0);
+      if (cache != null) cache.invalidate();
+      repaint();
+    }
+  }
+
+  /**
+   * Draw the scribble, from the tiles when zoomed out, else from the
+   * retained image if there is one, and then the selection and the
+   * stroke that is still being drawn on top of it.
+   */
   public void paint(Graphics g) {
-      for(int i = 0; i < lines.size(); i++) {
-          Line l = (Line)lines.get(i);
-          g.setColor(l.color);
-          g.drawLine(l.x1, l.y1, l.x2, l.y2);
+      long start = Metrics.ENABLED || paint_listener != null ? System.nanoTime() : 0;
+      Graphics2D v = (Graphics2D) g.create();        // In drawing coordinates.
+      v.transform(getView());
+      if (zoom <= TilePyramid.MAX_ZOOM) paintTiles((Graphics2D) g, v);
+      else if (cache != null) cache.paint(g, this);
+      else paintLines(v);
+      if (selection.size() > 0) paintSelection(v);
+      if (selecting || lasso != null) paintDrag(v);
+      if (stroke != null) {
+          if (isAntialiased())
+              v.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                  RenderingHints.VALUE_ANTIALIAS_ON);
+          stroke.draw(v);
+      }
+      v.dispose();
+      if (Metrics.ENABLED || paint_listener != null) {
+          long end = System.nanoTime();
+          if (Metrics.ENABLED) Metrics.painted(end - start);
+          if (paint_listener != null) paint_listener.painted(this, start, end);
+      }
+  }
+
+  /**
+   * Draw the tiles of the zoomed out drawing, and on top of them the
+   * points that are not in the tiles yet, unless there are too many.
+   */
+  protected void paintTiles(Graphics2D g, Graphics2D v) {
+      if (pyramid == null)
+          pyramid = new TilePyramid(document, this, isAntialiased());
+      int from = pyramid.getApplied();             // Before the tiles, so
+      pyramid.paint(g, zoom, view_x, view_y);      // that nothing is missed.
+      ScribbleDocument.State s = document.state();
+      int to = s.lines.pointCount();
+      if (from < to && to - from <= TilePyramid.OVERLAY)
+          renderer.drawRange(v, s.lines, from, to, s.erased);
+  }
+
+  /**
+   * Draw the saved lines of the scribble, in the appropriate colors.
+   * Only the lines that the spatial index finds inside the clip rectangle
+   * are drawn, so small repaints stay cheap however big the scribble is;
+   * big ones go to the parallel rasterizer, if it is on and can do them.
+   */
+  void paintLines(Graphics g) {
+      ScribbleDocument.State s = document.state();   // Never waits.
+      Rectangle clip = g.getClipBounds();
+      if (clip == null) {                  // Nothing to clip to, so
+          renderer.drawRange(g, s.lines, 0, s.lines.pointCount(), // draw all.
+                             s.erased);
+          if (Metrics.ENABLED)
+              Metrics.drew(s.lines.segmentCount(), s.lines.segmentCount());
+          return;
+      }
+      IntList some = s.query(clip);
+      if (raster == null || isAntialiased() || !(g instanceof Graphics2D)
+          || (long) clip.width * clip.height < PARALLEL_AREA
+          || !raster.draw((Graphics2D) g, s.lines, some))
+          renderer.drawSome(g, s.lines, some);
+      if (Metrics.ENABLED) Metrics.drew(some.size(), s.lines.segmentCount());
+  }
+
+  /**
+   * Draw a halo over the selected strokes.  Only the segments that the
+   * index finds inside the clip are looked at.
+   */
+  protected void paintSelection(Graphics2D g) {
+      ScribbleDocument.State s = document.state();
+      Rectangle clip = g.getClipBounds();
+      Rectangle area = clip == null ? selection_bounds
+                                    : clip.intersection(selection_bounds);
+      if (area.isEmpty()) return;
+      StrokeQuery q = s.strokes();
+      IntList some = s.query(area);
+      java.awt.Stroke old = g.getStroke();
+      g.setColor(HIGHLIGHT);
+      Path2D.Float path = new Path2D.Float();
+      float width = -1;
+      int last = -2;
+      for(int k = 0; k < some.size(); k++) {
+          int i = some.get(k);
+          if (!selection.containsSorted(q.strokeStart(i))) continue;
+          float w = s.lines.width(i);
+          if (w != width) {                        // One pen per path.
+              g.draw(path);
+              path.reset();
+              g.setStroke(PolylineRenderer.pen(w + (float) (2 * HIT_DISTANCE / zoom)));
+              width = w;
+              last = -2;
+          }
+          if (i != last + 1) path.moveTo(s.lines.x(i-1), s.lines.y(i-1));
+          path.lineTo(s.lines.x(i), s.lines.y(i));
+          last = i;
       }
+      g.draw(path);
+      g.setStroke(old);
+  }
+
+  /** Draw the rectangle or lasso being dragged out */
+  protected void paintDrag(Graphics2D g) {
+      java.awt.Stroke old = g.getStroke();
+      float dash = (float) (4 / zoom);
+      g.setStroke(new BasicStroke((float) (1 / zoom), BasicStroke.CAP_BUTT,
+                                  BasicStroke.JOIN_MITER, 10,
+                                  new float[] { dash, dash }, 0));
+      g.setColor(Color.gray);
+      if (lasso != null)
+          g.drawPolyline(lasso.xpoints, lasso.ypoints, lasso.npoints);
+      else {
+          Rectangle r = band();
+          g.drawRect(r.x, r.y, r.width, r.height);
+      }
+      g.setStroke(old);
+  }
+
+  /** The rectangle dragged out with the select tool, in the drawing */
+  protected Rectangle band() {
+    return new Rectangle(Math.min(first_x, last_x), Math.min(first_y, last_y),
+                         Math.abs(last_x - first_x), Math.abs(last_y - first_y));
   }
 
   public void mousePressed(MouseEvent e) {
+    if (Metrics.ENABLED) Metrics.mouseEvent();
+    if (recorder != null) recorder.mouse(e);
     if (e.isPopupTrigger()) {
       popup.show(e.getComponent(), e.getX(), e.getY());
+    } else if (SwingUtilities.isMiddleMouseButton(e)) {
+      panning = true;                              // Drag the view around.
+      last_x = e.getX(); last_y = e.getY();
+    } else if (tool != PEN) {
+      startTool(e);
     } else {
-      last_x = (short)e.getX(); last_y = (short)e.getY(); // Save position.
+      last_x = toDrawingX(e.getX()); last_y = toDrawingY(e.getY()); // Save position.
+      stroke = new Stroke(current_color, current_width, 64); // Start a new stroke
+      simplifier.add(stroke, last_x, last_y);      // there,
+      batcher.begin(stroke);                       // and show it as it grows.
     }
   }
 
   public void mouseReleased(MouseEvent e) {
+    if (Metrics.ENABLED) Metrics.mouseEvent();
+    if (recorder != null) recorder.mouse(e);
     if (e.isPopupTrigger()) {
       popup.show(e.getComponent(), e.getX(), e.getY());
+    } else if (panning) {
+      panning = false;
+    } else if (selecting || lasso != null || erasing) {
+      endTool(e);
+    } else {
+      commitStroke();              // The stroke is finished.
     }
   }
 
+  /**
+   * Add the new point to the stroke, unless it is too close to the last
+   * one, and let the batcher draw all the points of one frame together.
+   */
   public void mouseDragged(MouseEvent e) {
-    Graphics g = getGraphics();                     // Object to draw with.
-    g.setColor(current_color);                      // Set the current color.
-    g.drawLine(last_x, last_y, e.getX(), e.getY()); // Draw this line
-    lines.add(new Line(last_x, last_y,       // and save it, too.
-                              (short) e.getX(), (short)e.getY(),
-                              current_color));
-    last_x = (short) e.getX();  // Remember current mouse coordinates.
-    last_y = (short) e.getY();
+    if (Metrics.ENABLED) Metrics.mouseEvent();
+    if (recorder != null) recorder.mouse(e);
+    if (panning) {
+      panBy(e.getX() - last_x, e.getY() - last_y);
+      last_x = e.getX(); last_y = e.getY();
+      return;
+    }
+    if (selecting || lasso != null || erasing) {
+      dragTool(e);
+      return;
+    }
+    if (stroke == null) return;                      // Not drawing.
+    last_x = toDrawingX(e.getX());  // Remember current mouse coordinates.
+    last_y = toDrawingY(e.getY());
+    simplifier.add(stroke, last_x, last_y);
+    batcher.add();                                   // Draw it soon.
+  }
+
+  /** Scroll the view with the wheel, or zoom it if ctrl is down */
+  public void mouseWheelMoved(MouseWheelEvent e) {
+    if (recorder != null) recorder.mouse(e);
+    double notches = e.getPreciseWheelRotation();
+    if (e.isControlDown())
+      zoomAbout(e.getX(), e.getY(), Math.pow(ZOOM_STEP, -notches));
+    else if (e.isShiftDown())
+      panBy((int) Math.round(-notches * SCROLL_STEP), 0);
+    else
+      panBy(0, (int) Math.round(-notches * SCROLL_STEP));
   }
+
+  /** Start dragging the select, lasso or eraser tool at e */
+  protected void startTool(MouseEvent e) {
+    first_x = last_x = toDrawingX(e.getX());
+    first_y = last_y = toDrawingY(e.getY());
+    if (tool == SELECT) selecting = true;
+    else if (tool == LASSO) {
+      lasso = new Polygon();
+      lasso.addPoint(last_x, last_y);
+    }
+    else {
+      erasing = true;
+      erased = false;
+      eraseTo(last_x, last_y);
+    }
+  }
+
+  /** Drag the rectangle, the lasso or the eraser to e */
+  protected void dragTool(MouseEvent e) {
+    int x = toDrawingX(e.getX()), y = toDrawingY(e.getY());
+    if (erasing) { eraseTo(x, y); return; }
+    Rectangle r = selecting ? band() : new Rectangle(last_x, last_y, 0, 0);
+    last_x = x; last_y = y;
+    if (lasso != null) lasso.addPoint(x, y);
+    r.add(selecting ? band() : new Rectangle(x, y, 0, 0));
+    r.grow(1, 1);
+    repaintDrawing(r);                     // The old outline and the new.
+  }
+
+  /** Let go of the tool: select what it went round, or stop erasing */
+  protected void endTool(MouseEvent e) {
+    StrokeQuery q = document.state().strokes();
+    if (selecting) {
+      selecting = false;
+      Rectangle r = band();
+      repaintDrawing(new Rectangle(r.x - 1, r.y - 1, r.width + 3, r.height + 3));
+      IntList found = new IntList();
+      if ((r.width + r.height) * zoom <= HIT_DISTANCE) {  // A click: the
+        int start = q.nearest(view_x + e.getX() / zoom,  // stroke nearest it.
+                              view_y + e.getY() / zoom, HIT_DISTANCE / zoom);
+        if (start >= 0) found.add(start);
+      }
+      else found = q.inside(r);
+      select(found, e.isShiftDown());
+    }
+    else if (lasso != null) {
+      Polygon p = lasso;
+      lasso = null;
+      Rectangle r = p.getBounds();
+      repaintDrawing(new Rectangle(r.x - 1, r.y - 1, r.width + 3, r.height + 3));
+      select(q.inside(p), e.isShiftDown());
+    }
+    else erasing = false;
+  }
+
+  /**
+   * Erase the strokes the eraser touches on its way from the last point
+   * to (x, y).  One sweep is undone in one go.
+   */
+  protected void eraseTo(int x, int y) {
+    IntList hits = document.state().strokes().touching(last_x, last_y, x, y,
+                                                        ERASER_RADIUS / zoom);
+    last_x = x; last_y = y;
+    if (hits.size() == 0) return;
+    if (document.erase(hits, erased)) erased = true;
+    else {                                 // Shared: stop, and say so once.
+      erasing = false;
+      getToolkit().beep();
+    }
+  }
+
+  /**
+   * Simplify the stroke being drawn and save it in the document, which
+   * shows it in every view.  The area of the raw stroke is repainted too,
+   * since the saved one may differ from it slightly.
+   */
+  void commitStroke() {
+    if (stroke == null) return;
+    Stroke raw = stroke;
+    batcher.end();
+    stroke = null;
+    document.addStroke(simplifier.commit(raw));
+    Rectangle r = raw.bounds(0);
+    if (r != null) repaintDrawing(r);
+  }
+
   public void mouseClicked(MouseEvent e) { }
   public void mouseEntered(MouseEvent e) { }
   public void mouseExited(MouseEvent e) { }
@@ -163,8 +792,34 @@ class Scribble extends JComponent
 
   /** Clear the scribble.  Invoked by popup menu */
   void clear() {
-    lines.clear();               // Throw out the saved scribble
-    repaint();                   // and redraw everything.
+    commitStroke();              // Finish drawing first, then
+    document.clear();            // put the saved scribble aside for undo.
+  }
+
+  /** Undo the last edit to the document, made in any of its views */
+  public void undo() {
+    commitStroke();
+    if (!document.undo()) getToolkit().beep();
+  }
+
+  /** Redo the last undone edit */
+  public void redo() {
+    commitStroke();
+    if (!document.redo()) getToolkit().beep();
+  }
+
+  /** Erase the selected strokes, in every view */
+  public void deleteSelection() {
+    commitStroke();
+    if (selection.size() == 0 || !document.erase(selection, false))
+      getToolkit().beep();
+  }
+
+  /** Redraw area r after lines in it were removed or brought back */
+  protected void changed(Rectangle r) {
+    if (r == null) return;
+    if (cache != null) cache.redraw(r, this);
+    repaintDrawing(r);
   }
 
 public void print(){
@@ -232,50 +887,86 @@ public void print(){
 
   /**
    * The DataFlavor used for our particular type of cut-and-paste data.
-   * This one will transfer data in the form of a serialized Vector object.
+   * This one will transfer data in the form of a SegmentStore object.
    * Note that in Java 1.1.1, this works intra-application, but not between
    * applications.  Java 1.1.1 inter-application data transfer is limited to
    * the pre-defined string and text data flavors.
    */
   public static final DataFlavor dataFlavor =
-      new DataFlavor(ArrayList.class, "ScribbleListOfLines");
+      new DataFlavor(SegmentStore.class, "ScribbleSegments");
 
   /**
-   * Copy the current scribble and store it in a SimpleSelection object
-   * (defined below).  Then put that object on the clipboard for pasting.
+   * The DataFlavor that does work between applications: the scribble as a
+   * stream of bytes in the ScribbleFile format.  It is registered with the
+   * system flavor map under its MIME type, so that other programs (and
+   * other Scribble processes) can find it on the system clipboard.
+   */
+  public static final DataFlavor streamFlavor = new DataFlavor(
+      "application/x-scribble; class=java.io.InputStream", "Scribble drawing");
+  static {
+    FlavorMap map = SystemFlavorMap.getDefaultFlavorMap();
+    if (map instanceof SystemFlavorMap) {
+      ((SystemFlavorMap) map).addUnencodedNativeForFlavor(streamFlavor,
+                                                          "application/x-scribble");
+      ((SystemFlavorMap) map).addFlavorForUnencodedNative("application/x-scribble",
+                                                          streamFlavor);
+    }
+  }
+
+  /**
+   * Put the selected strokes on the clipboard for pasting, or if none are
+   * selected a snapshot of the current scribble, in a ScribbleSelection
+   * object (defined below).  Taking the snapshot copies nothing, unless
+   * strokes were erased, so copying everything takes the same time at
+   * any size.
    */
   public void copy() {
     // Get system clipboard
-    Clipboard c = this.getToolkit().getSystemClipboard();
-    // Copy and save the scribble in a Transferable object
-    SimpleSelection s = new SimpleSelection(lines.clone(), dataFlavor);
+    Clipboard c = getClipboard();
+    commitStroke();
+    // Save the selection or a snapshot of the scribble in a Transferable
+    ScribbleDocument.State state = document.state();
+    ScribbleSelection s = new ScribbleSelection(selection.size() > 0
+        ? state.strokes().copy(selection) : state.drawing());
     // Put that object on the clipboard
     c.setContents(s, s);
   }
 
-  /** Cut is just like a copy, except we erase the scribble afterwards */
-  public void cut() { copy(); clear();  }
+  /** Cut is just like a copy, except we erase what was copied afterwards */
+  public void cut() {
+    copy();
+    if (selection.size() > 0) deleteSelection();
+    else clear();
+  }
 
   /**
    * Ask for the Transferable contents of the system clipboard, then ask that
    * object for the scribble data it represents.  If either step fails, beep!
+   * A scribble copied in this program arrives as a SegmentStore; one copied
+   * in another program arrives as a byte stream and is decoded first.
+   * The pasted lines are added in one go and only their area is repainted.
    */
   public void paste() {
-    Clipboard c = this.getToolkit().getSystemClipboard();  // Get clipboard.
+    Clipboard c = getClipboard();                          // Get clipboard.
     Transferable t = c.getContents(this);                  // Get its contents.
     if (t == null) {              // If there is nothing to paste, beep.
       this.getToolkit().beep();
       return;
     }
+    commitStroke();
     try {
-      // Ask for clipboard contents to be converted to our data flavor.
-      // This will throw an exception if our flavor is not supported.
-      ArrayList newlines = (ArrayList) t.getTransferData(dataFlavor);
-      // Add all those pasted lines to our scribble.
-      for(int i = 0; i < newlines.size(); i++)
-        lines.add(newlines.get(i));
-      // And redraw the whole thing
-      repaint();
+      // Ask for clipboard contents to be converted to one of our flavors.
+      // This will throw an exception if neither flavor is supported.
+      SegmentStore newlines;
+      if (t.isDataFlavorSupported(dataFlavor))
+        newlines = (SegmentStore) t.getTransferData(dataFlavor);
+      else
+        newlines = readStream((InputStream) t.getTransferData(streamFlavor));
+      // Add all those pasted lines to our scribble, simplified; every
+      // view redraws just the pasted lines.
+      SegmentStore pasted = new ColumnarSegmentStore();
+      simplifier.simplifyInto(newlines, pasted);
+      document.paste(pasted);
     }
     catch (UnsupportedFlavorException e) {
       this.getToolkit().beep();   // If clipboard has some other type of data
@@ -285,47 +976,52 @@ public void print(){
     }
   }
 
+  /** Decode a scribble pasted from another program */
+  static SegmentStore readStream(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+    in.close();
+    return ScribbleFile.read(ByteBuffer.wrap(bytes.toByteArray()));
+  }
+
   /**
-   * This nested class implements the Transferable and ClipboardOwner
-   * interfaces used in data transfer.  It is a simple class that remembers a
-   * selected object and makes it available in only one specified flavor.
+   * The Transferable for scribbles.  It offers a SegmentStore snapshot in
+   * our own flavor, and the same scribble encoded as bytes for other
+   * programs; the bytes are only produced if someone asks for them.
    */
-  static class SimpleSelection implements Transferable, ClipboardOwner {
-    protected Object selection;    // The data to be transferred.
-    protected DataFlavor flavor;   // The one data flavor supported.
-    public SimpleSelection(Object selection, DataFlavor flavor) {
-      this.selection = selection;  // Specify data.
-      this.flavor = flavor;        // Specify flavor.
+  static class ScribbleSelection implements Transferable, ClipboardOwner {
+    protected SegmentStore selection;  // The snapshot to be transferred.
+    public ScribbleSelection(SegmentStore selection) {
+      this.selection = selection;
     }
 
-    /** Return the list of supported flavors.  Just one in this case */
     public DataFlavor[] getTransferDataFlavors() {
-      return new DataFlavor[] { flavor };
+      return new DataFlavor[] { dataFlavor, streamFlavor };
     }
-    /** Check whether we support a specified flavor */
     public boolean isDataFlavorSupported(DataFlavor f) {
-      return f.equals(flavor);
+      return f.equals(dataFlavor) || f.equals(streamFlavor);
     }
-    /** If the flavor is right, transfer the data (i.e. return it) */
     public Object getTransferData(DataFlavor f)
-         throws UnsupportedFlavorException {
-      if (f.equals(flavor)) return selection;
-      else throw new UnsupportedFlavorException(f);
+         throws UnsupportedFlavorException, IOException {
+      if (selection == null) throw new IOException("selection is gone");
+      if (f.equals(dataFlavor)) return selection;
+      if (!f.equals(streamFlavor)) throw new UnsupportedFlavorException(f);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ScribbleFile.write(selection, bytes, true);
+      return new ByteArrayInputStream(bytes.toByteArray());
     }
 
-    /** This is the ClipboardOwner method.  Called when the data is no
-     *  longer on the clipboard.  In this case, we don't need to do much. */
     public void lostOwnership(Clipboard c, Transferable t) {
       selection = null;
     }
   }
 
   /**
-   * Prompt the user for a filename, and save the scribble in that file.
-   * Serialize the vector of lines with an ObjectOutputStream.
-   * Compress the serialized objects with a GZIPOutputStream.
-   * Write the compressed, serialized data to a file with a FileOutputStream.
-   * Don't forget to flush and close the stream.
+   * Prompt the user for a filename, and save the scribble in that file,
+   * in the compact binary format written by ScribbleFile.  The writing
+   * happens in the background; see ScribbleIO.
    */
   public void save() {
     // Create a file dialog to query the user for a filename.
@@ -336,26 +1032,15 @@ public void print(){
     }
     String filename = f.getSelectedFile().getPath();    // Get the user's response
     if (filename != null) {          // If user didn't click "Cancel".
-      try {
-        // Create the necessary output streams to save the scribble.
-        FileOutputStream fos = new FileOutputStream(filename); // Save to file
-        GZIPOutputStream gzos = new GZIPOutputStream(fos);     // Compressed
-        ObjectOutputStream out = new ObjectOutputStream(gzos); // Save objects
-        out.writeObject(lines);      // Write the entire Vector of scribbles
-        out.flush();                 // Always flush the output.
-        out.close();                 // And close the stream.
-      }
-      // Print out exceptions.  We should really display them in a dialog...
-      catch (IOException e) { System.out.println(e); }
+      ScribbleIO.save(this, new File(filename)); // Write the scribble.
     }
   }
 
   /**
-   * Prompt for a filename, and load a scribble from that file.
-   * Read compressed, serialized data with a FileInputStream.
-   * Uncompress that data with a GZIPInputStream.
-   * Deserialize the vector of lines with a ObjectInputStream.
-   * Replace current data with new data, and redraw everything.
+   * Prompt for a filename, and load a scribble from that file.  The file
+   * is read in the background by ScribbleIO, which hands us the scribble
+   * a chunk at a time; each chunk is added and repainted as it arrives.
+   * The current data is replaced by the new data.
    */
   public void load() {
     // Create a file dialog to query the user for a filename.
@@ -366,24 +1051,42 @@ public void print(){
     }
     String filename = f.getSelectedFile().getPath();    // Get the user's response
     if (filename != null) {           // If user didn't click "Cancel".
-      try {
-        // Create necessary input streams
-        FileInputStream fis = new FileInputStream(filename); // Read from file
-        GZIPInputStream gzis = new GZIPInputStream(fis);     // Uncompress
-        ObjectInputStream in = new ObjectInputStream(gzis);  // Read objects
-        // Read in an object.  It should be a vector of scribbles
-        ArrayList newlines = (ArrayList) in.readObject();
-        in.close();                    // Close the stream.
-        lines = newlines;              // Set the Vector of lines.
-        repaint();                     // And redisplay the scribble.
-      }
-      // Print out exceptions.  We should really display them in a dialog...
-      catch (Exception e) { System.out.println(e); }
+      ScribbleIO.load(this, new File(filename)); // Read the scribble.
+    }
+  }
+
+  /**
+   * Throw away the scribble to make room for one being loaded, and
+   * return the store the loaded parts go to.
+   */
+  SegmentStore startLoad() {
+    commitStroke();
+    return document.startLoad();
+  }
+
+  /** Add a part of a loaded scribble to store target; see ScribbleDocument */
+  void addLoaded(SegmentStore part, SegmentStore target) {
+    document.addLoaded(part, target);
+  }
+
+  /** Give up a load into store target; see ScribbleDocument */
+  void abortLoad(SegmentStore target) {
+    document.abortLoad(target);
+  }
+
+  /** Convert an old-style list of Line objects to a segment store */
+  static SegmentStore fromLines(ArrayList list) {
+    SegmentStore store = new ColumnarSegmentStore();
+    for(int i = 0; i < list.size(); i++) {
+      Line l = (Line)list.get(i);
+      store.addSegment(l.x1, l.y1, l.x2, l.y2, l.color);
     }
+    return store;
   }
 
   /** A class to store the coordinates and color of one scribbled line.
-   *  The complete scribble is stored as a Vector of these objects */
+   *  Scribbles used to be stored as a list of these objects; they are
+   *  now only read from old files. */
   static class Line implements Serializable {
     public short x1, y1, x2, y2;
     public Color color;
@@ -0,0 +1,464 @@
+package scribble;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A drawing that any number of views (Scribble components, in one window
+ * or several) show and edit together.  The document owns the points, their
+ * spatial index, the undo history and the journal.
+ *
+ * Changes are made by one thread at a time, through the synchronized
+ * methods below.  After each change the document publishes a State: a
+ * snapshot of the store, which costs nothing to take, the index, and the
+ * strokes that are erased but still in the store.
+ * Views read the current state without locking, so painting never waits
+ * for an edit and an edit never waits for a paint.  Each change is then
+ * sent to the listeners with the area it touched, so that every view
+ * repaints just that area.  Listeners are called on the thread that made
+ * the change, and must not block.  A Link, if set, passes the edits on
+ * to other copies of the document, and rebase() fits theirs in.
+ */
+class ScribbleDocument {
+  static final int COMPACT_POINTS = 1 << 16; // Erased before compacting.
+
+  /**
+   * What views see: a snapshot of the store, the index over it, and the
+   * strokes of the store that are erased and must not be shown.
+   */
+  static class State {
+    final SegmentStore lines;              // Read-only.
+    final SegmentIndex index;              // May have more than lines.
+    final ErasedSet erased;
+    private volatile SegmentStore drawing; // Lines without erased, when made.
+
+    State(SegmentStore lines, SegmentIndex index, ErasedSet erased) {
+      this.lines = lines;
+      this.index = index;
+      this.erased = erased;
+    }
+
+    /** The sorted indices of the segments of lines that meet r. */
+    IntList query(Rectangle r) { return index.query(lines, erased, r); }
+
+    /** Questions about the strokes of lines. */
+    StrokeQuery strokes() { return new StrokeQuery(lines, index, erased); }
+
+    /**
+     * The drawing as it is shown: lines itself, or a copy of it without
+     * the erased strokes, made the first time it is asked for.
+     */
+    SegmentStore drawing() {
+      if (erased.isEmpty()) return lines;
+      SegmentStore d = drawing;
+      if (d == null) drawing = d = erased.compact(lines);
+      return d;
+    }
+  }
+
+  /** One change to the document. */
+  static class Change {
+    static final int APPENDED = 1;         // Points from..to-1 were added.
+    static final int REMOVED = 2;          // Points in bounds were removed
+                                           // from from on, or erased or
+                                           // put back (and maybe others
+                                           // added).
+    static final int REPLACED = 3;         // Everything may have changed.
+
+    final int type;
+    final SegmentStore lines;              // The store after the change.
+    final int from, to;
+    final Rectangle bounds;                // Null if nothing or everything.
+
+    Change(int type, SegmentStore lines, int from, int to, Rectangle bounds) {
+      this.type = type; this.lines = lines;
+      this.from = from; this.to = to; this.bounds = bounds;
+    }
+  }
+
+  /** Told about every change to a document. */
+  interface Listener {
+    void documentChanged(ScribbleDocument d, Change c);
+  }
+
+  /**
+   * Passes the document's own edits on to other copies of it; see
+   * CollabClient.  Called while the document is locked.
+   */
+  interface Link {
+    /** Points were added; part holds them and must not be changed. */
+    void appended(SegmentStore part);
+    void cleared();
+    /** Stop sharing; the document keeps its drawing. */
+    void close();
+  }
+
+  protected SegmentStore lines;            // Only changed when locked.
+  protected SegmentIndex index;
+  protected ErasedSet erased = ErasedSet.NONE; // Strokes of lines not shown.
+  protected History history = new History();
+  protected Journal journal = null;        // Logs changes, if set.
+  protected Link link = null;              // Shares changes, if set.
+  protected volatile State state;          // What readers see.
+  protected CopyOnWriteArrayList<Listener> listeners =
+      new CopyOnWriteArrayList<Listener>();
+
+  public ScribbleDocument() { this(new ColumnarSegmentStore()); }
+
+  /** A document holding the drawing in store lines. */
+  public ScribbleDocument(SegmentStore lines) {
+    this.lines = lines;
+    index = new SegmentIndex();
+    index.addRange(lines, 0, lines.pointCount());
+    publish();
+    if (Metrics.ENABLED) Metrics.watch(this);
+  }
+
+  /** The current state; call again for a newer one. */
+  State state() { return state; }
+
+  /** A read-only snapshot of the whole drawing, without erased strokes. */
+  SegmentStore snapshot() { return state.drawing(); }
+
+  void addListener(Listener l) { listeners.add(l); }
+  void removeListener(Listener l) { listeners.remove(l); }
+
+  /** The number of views on this document. */
+  int getListenerCount() { return listeners.size(); }
+
+  synchronized History getHistory() { return history; }
+  synchronized Journal getJournal() { return journal; }
+
+  /**
+   * Share all further edits through l, or stop sharing if l is null.  The
+   * drawing so far goes to l as the first addition, so that it is shared
+   * too rather than lost.  Erased strokes are dropped from the store
+   * first, since the other copies only know the points they are sent.
+   */
+  synchronized void setLink(Link l) {
+    link = l;
+    history.clear();             // Edits from before cannot be undone.
+    if (l != null && !erased.isEmpty()) {
+      dropErased();
+      if (journal != null) journal.snapshot();
+      changed(Change.REPLACED, 0, 0, null);
+    }
+    if (l != null && lines.pointCount() > 0) l.appended(lines.snapshot());
+  }
+
+  synchronized Link getLink() { return link; }
+
+  /** Start journaling the drawing in j. */
+  synchronized void startJournal(Journal j) {
+    j.start(this);
+    journal = j;
+  }
+
+  /** Stop journaling; if discard is true, the journal is thrown away. */
+  synchronized void closeJournal(boolean discard) {
+    if (journal != null) journal.close(discard);
+    journal = null;
+  }
+
+  /** Replace the drawing with the one recovered from journal j. */
+  synchronized void recover(Journal j) throws IOException {
+    replace();
+    j.recover(lines);
+    index.rebuild(lines);
+    history.clear();             // There is nothing to undo yet.
+    changed(Change.REPLACED, 0, 0, null);
+  }
+
+  /** Add a finished stroke. */
+  synchronized void addStroke(Stroke s) {
+    int from = lines.pointCount();
+    s.appendTo(lines);
+    if (journal != null && s.size() > 1) journal.stroke(s);
+    remember(from, false);
+    if (link != null && s.size() > 1)
+      link.appended(copyRange(lines, from, lines.pointCount()));
+    appended(from);
+  }
+
+  /** Add pasted points, which must not change any more. */
+  synchronized void paste(SegmentStore pasted) {
+    int from = lines.pointCount();
+    lines.addAll(pasted);        // Grows the store once.
+    if (journal != null) journal.paste(pasted);
+    remember(from, false);
+    if (link != null) link.appended(pasted);
+    appended(from);
+  }
+
+  /** Clear the drawing; the old one is kept for undo. */
+  synchronized void clear() {
+    replace();
+    if (journal != null) journal.clear();
+    if (link != null) link.cleared();
+    changed(Change.REPLACED, 0, 0, null);
+  }
+
+  /**
+   * Clear the drawing to make room for one being loaded, and return the
+   * store that the loaded parts should go to.
+   */
+  synchronized SegmentStore startLoad() {
+    clear();
+    return lines;
+  }
+
+  /**
+   * Add a part of a loaded drawing to store target.  If the load was
+   * undone in the meantime, target is no longer our store and the part
+   * is dropped.
+   */
+  synchronized void addLoaded(SegmentStore part, SegmentStore target) {
+    if (lines != target) return;
+    int from = lines.pointCount();
+    lines.addAll(part);
+    if (journal != null) journal.paste(part);
+    remember(from, true);        // One edit per load.
+    if (link != null) link.appended(part);
+    appended(from);
+  }
+
+  /**
+   * Give up a load into store target that failed part-way, and put back
+   * the drawing it replaced.  Whatever was added since the load began
+   * goes with it, and cannot be redone.  Nothing happens if the load was
+   * undone already, or if its clear cannot be taken back any more: it
+   * was shared, or has been dropped from the history.
+   */
+  synchronized void abortLoad(SegmentStore target) {
+    if (lines != target) return;
+    History.Edit e = history.dropReplace(target);
+    if (e == null) return;
+    lines = e.oldLines;
+    index = e.oldIndex;
+    erased = e.oldErased;
+    if (journal != null) journal.snapshot();
+    changed(Change.REPLACED, 0, 0, null);
+  }
+
+  /**
+   * Erase the strokes starting at the given ascending points, and return
+   * false if there were none or the drawing is shared, whose copies can
+   * only grow or be cleared.  The strokes are only marked as erased, so
+   * this takes time for them, not for the drawing; once more than half
+   * of the store is erased, it is compacted (see compact()).  If merge is
+   * true, the erase is undone together with the one before it; see
+   * History.erased().
+   */
+  synchronized boolean erase(IntList strokes, boolean merge) {
+    int n = lines.pointCount();
+    if (link != null) return false;
+    IntList ranges = new IntList();
+    Rectangle r = null;
+    for(int k = 0; k < strokes.size(); k++) {
+      int i = strokes.get(k);
+      if (i >= n || erased.contains(i)) continue;  // Gone already.
+      int end = index.strokeEnd(lines, i);
+      ranges.add(i);
+      ranges.add(end);
+      Rectangle b = bounds(lines, i, end);
+      r = r == null ? b : r.union(b);
+    }
+    if (r == null) return false;
+    ErasedSet e = ErasedSet.of(ranges);
+    erased = erased.with(e);
+    if (journal != null) journal.erase(e);
+    history.erased(e, r, merge);
+    if (erased.points() >= COMPACT_POINTS && 2L * erased.points() > n) {
+      compact();
+      changed(Change.REPLACED, 0, 0, null);
+    }
+    else changed(Change.REMOVED, n, n, r);
+    return true;
+  }
+
+  /**
+   * Undo the last edit, and return false if there was none.  Undoing
+   * added points just truncates them; undoing a clear or load swaps the
+   * old drawing back in.  While the document is shared, edits are not
+   * recorded, since those of others would have to be undone too.
+   */
+  synchronized boolean undo() {
+    History.Edit e = history.undo();
+    if (e == null) return false;
+    if (e.type == History.APPEND) {
+      Rectangle r = bounds(lines, e.from, e.to);
+      index.truncate(lines, e.from, e.to);
+      lines.truncate(e.from);
+      erased = erased.truncate(e.from);
+      if (journal != null) journal.truncate(e.from);
+      changed(Change.REMOVED, e.from, e.from, r);
+    }
+    else if (e.type == History.ERASE) {
+      erased = erased.without(e.strokes);
+      if (journal != null) journal.unerase(e.strokes);
+      changed(Change.REMOVED, lines.pointCount(), lines.pointCount(), e.bounds);
+    }
+    else {
+      lines = e.oldLines;
+      index = e.oldIndex;
+      erased = e.oldErased;
+      if (journal != null) journal.snapshot();
+      changed(Change.REPLACED, 0, 0, null);
+    }
+    return true;
+  }
+
+  /** Redo the last undone edit, and return false if there was none. */
+  synchronized boolean redo() {
+    History.Edit e = history.redo();
+    if (e == null) return false;
+    if (e.type == History.APPEND) {
+      lines.restore(e.to);
+      if (journal != null) journal.paste(copyRange(lines, e.from, e.to));
+      appended(e.from);
+    }
+    else if (e.type == History.ERASE) {
+      erased = erased.with(e.strokes);
+      if (journal != null) journal.erase(e.strokes);
+      changed(Change.REMOVED, lines.pointCount(), lines.pointCount(), e.bounds);
+    }
+    else {
+      lines = e.newLines;
+      index = e.newIndex;
+      erased = ErasedSet.NONE;
+      if (journal != null) journal.snapshot();
+      changed(Change.REPLACED, 0, 0, null);
+    }
+    return true;
+  }
+
+  /**
+   * Replace the points from keep on with parts, or everything if clear
+   * is true, without recording an edit or telling the link.  A shared
+   * document uses this to fit the edits of others in before its own
+   * edits that are still on their way.
+   */
+  synchronized void rebase(int keep, boolean clear, List<SegmentStore> parts) {
+    Rectangle r = null;
+    if (clear) {
+      lines = new ColumnarSegmentStore();
+      index = new SegmentIndex();
+      erased = ErasedSet.NONE;
+      if (journal != null) journal.clear();
+    }
+    else if (keep < lines.pointCount()) {
+      r = bounds(lines, keep, lines.pointCount());
+      index.truncate(lines, keep, lines.pointCount());
+      lines.truncate(keep);
+      erased = erased.truncate(keep);
+      if (journal != null) journal.truncate(keep);
+    }
+    int from = lines.pointCount();
+    for(int i = 0; i < parts.size(); i++) {
+      lines.addAll(parts.get(i));
+      if (journal != null) journal.paste(parts.get(i));
+    }
+    index.addRange(lines, from, lines.pointCount());
+    Rectangle added = bounds(lines, from, lines.pointCount());
+    if (clear) changed(Change.REPLACED, 0, 0, null);
+    else if (r == null) changed(Change.APPENDED, from, lines.pointCount(), added);
+    else changed(Change.REMOVED, from, from, added == null ? r : r.union(added));
+  }
+
+  /**
+   * Drop the erased strokes from the store, after an erase that made
+   * them too many.  That erase becomes a replace of the store in the
+   * history, so that undoing it still puts its strokes back, at once.
+   */
+  protected void compact() {
+    SegmentStore oldLines = lines;
+    SegmentIndex oldIndex = index;
+    ErasedSet before = erased.without(history.dropLast().strokes);
+    dropErased();
+    history.replaced(oldLines, oldIndex, before, lines, index);
+    if (journal != null) journal.snapshot();
+  }
+
+  /** Copy the store without its erased strokes, and index the copy. */
+  private void dropErased() {
+    lines = erased.compact(lines);
+    index = new SegmentIndex();
+    index.addRange(lines, 0, lines.pointCount());
+    erased = ErasedSet.NONE;
+  }
+
+  /**
+   * Start over with an empty store and index, remembering the old ones
+   * in the history so that the change can be undone.
+   */
+  protected void replace() {
+    SegmentStore oldLines = lines;
+    SegmentIndex oldIndex = index;
+    ErasedSet oldErased = erased;
+    lines = new ColumnarSegmentStore();
+    index = new SegmentIndex();
+    erased = ErasedSet.NONE;
+    if (link == null)
+      history.replaced(oldLines, oldIndex, oldErased, lines, index);
+  }
+
+  /** Record the points added from point from on as an edit, unless shared. */
+  private void remember(int from, boolean merge) {
+    if (link == null) history.appended(from, lines.pointCount(), merge);
+  }
+
+  /** Index the points added from point from on, and announce them. */
+  protected void appended(int from) {
+    int to = lines.pointCount();
+    index.addRange(lines, from, to);
+    changed(Change.APPENDED, from, to, bounds(lines, from, to));
+  }
+
+  /** Publish the new state and tell the listeners what changed. */
+  protected void changed(int type, int from, int to, Rectangle r) {
+    publish();
+    Change c = new Change(type, state.lines, from, to, r);
+    for(Listener l : listeners) l.documentChanged(this, c);
+  }
+
+  private void publish() { state = current(); }
+
+  /** The state of the document now, which may not be published yet. */
+  State current() { return new State(lines.snapshot(), index, erased); }
+
+  /**
+   * The area that points from..to-1 of a store cover when drawn with
+   * their pens, or null if there are none
+   */
+  static Rectangle bounds(SegmentStore s, int from, int to) {
+    if (from >= to) return null;
+    int x1 = s.x(from), y1 = s.y(from), x2 = x1, y2 = y1;
+    float w = s.width(from);
+    for(int i = from + 1; i < to; i++) {
+      x1 = Math.min(x1, s.x(i)); x2 = Math.max(x2, s.x(i));
+      y1 = Math.min(y1, s.y(i)); y2 = Math.max(y2, s.y(i));
+      if (s.isMove(i)) w = Math.max(w, s.width(i));
+    }
+    int m = PolylineRenderer.margin(w);
+    return new Rectangle(x1 - m, y1 - m, x2 - x1 + 1 + 2 * m,
+                         y2 - y1 + 1 + 2 * m);
+  }
+
+  /** A copy of points from..to-1 of a store, which start a polyline */
+  static SegmentStore copyRange(SegmentStore s, int from, int to) {
+    ColumnarSegmentStore c = new ColumnarSegmentStore();
+    c.ensureCapacity(to - from);
+    copyInto(s, from, to, c);
+    return c;
+  }
+
+  /** Append points from..to-1 of a store, which start a polyline, to c */
+  static void copyInto(SegmentStore s, int from, int to, SegmentStore c) {
+    for(int i = from; i < to; i++) {
+      if (s.isMove(i)) c.moveTo(s.x(i), s.y(i), s.color(i), s.width(i));
+      else c.lineTo(s.x(i), s.y(i));
+    }
+  }
+}
@@ -0,0 +1,372 @@
+package scribble;
+
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the compact binary scribble format.  A file is
+ *
+ * <pre>
+ *   int    MAGIC ("SCRB")
+ *   byte   VERSION
+ *   int    number of palette pens, then each pen as an ARGB int color and
+ *          a float width (version 1 has only the colors, all 1 wide)
+ *   chunks, each:
+ *     byte   TAG_CHUNK
+ *     int    number of points
+ *     byte   codec (CODEC_RAW or CODEC_DEFLATE)
+ *     int    raw payload length
+ *     int    stored payload length, then the stored payload
+ *   byte   TAG_END
+ * </pre>
+ *
+ * A payload holds whole polylines.  Each point is a varint of its zigzag
+ * x delta shifted left once (as a long) with the low bit set for a
+ * polyline start, then a varint of its zigzag y delta, then for starts a
+ * varint palette index.  Deltas are from the previous point of the chunk (or from 0,0),
+ * so every chunk can be decoded on its own and handed to the model while
+ * the rest of the file is still being read.
+ *
+ * Files written by older versions, a gzipped Java serialization of the
+ * scribble, are recognised by their gzip header and imported as well.
+ */
+class ScribbleFile {
+  static final int MAGIC = 0x53435242;           // "SCRB"
+  static final int VERSION = 2;
+  static final int TAG_END = 0;
+  static final int TAG_CHUNK = 1;
+  static final int CODEC_RAW = 0;
+  static final int CODEC_DEFLATE = 1;
+  static final int CHUNK_POINTS = 4096;          // Chunks hold at least this
+                                                 // many points, or the rest.
+  static final int MAX_INFLATE = 1032;           // Most deflate can shrink by.
+  static final int MIN_POINT_BYTES = 2;          // Least a point can take.
+
+  /** Receives the chunks of a scribble as they are decoded. */
+  interface ChunkListener {
+    /**
+     * Called with the next part of the scribble; done and total count
+     * bytes of the input.  Return false to stop reading.
+     */
+    boolean chunk(SegmentStore part, long done, long total);
+  }
+
+  /** Told how many points have been written so far. */
+  interface Progress {
+    /** Return false to stop writing. */
+    boolean progress(long done, long total);
+  }
+
+  /** Write store s to file f, deflating the chunks if that helps. */
+  static void write(SegmentStore s, File f) throws IOException {
+    write(s, f, null);
+  }
+
+  /**
+   * Write store s to file f, reporting progress to p (if not null).  The
+   * data goes to a temporary file first, which replaces f only once it
+   * is complete, so a failed or cancelled save leaves f as it was.
+   * Return false if p cancelled the save.
+   */
+  static boolean write(SegmentStore s, File f, Progress p) throws IOException {
+    File tmp = new File(f.getPath() + ".tmp");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+    boolean done = false;
+    try {
+      done = write(s, out, true, p);
+      out.close();
+      if (done) Files.move(tmp.toPath(), f.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+      return done;
+    }
+    finally {
+      out.close();
+      if (!done) tmp.delete();
+    }
+  }
+
+  /** Write store s to a stream; compress chooses the deflate codec. */
+  static void write(SegmentStore s, OutputStream os, boolean compress)
+       throws IOException {
+    write(s, os, compress, null);
+  }
+
+  /**
+   * Write store s to a stream, reporting progress to p (if not null)
+   * after each chunk.  Return false if p cancelled the write.
+   */
+  static boolean write(SegmentStore s, OutputStream os, boolean compress,
+                       Progress p) throws IOException {
+    DataOutputStream out = new DataOutputStream(os);
+    Palette palette = new Palette();             // First pass: the pens.
+    for(int i = 0; i < s.pointCount(); i++)
+      if (s.isMove(i)) palette.indexOf(s.color(i), s.width(i));
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeInt(palette.size());
+    for(int i = 0; i < palette.size(); i++) {
+      out.writeInt(palette.get(i).getRGB());
+      out.writeFloat(palette.width(i));
+    }
+
+    ByteArrayOutputStream raw = new ByteArrayOutputStream(CHUNK_POINTS * 3);
+    ByteArrayOutputStream packed = new ByteArrayOutputStream(CHUNK_POINTS * 3);
+    int n = s.pointCount();
+    for(int start = 0; start < n; ) {            // Second pass: the chunks.
+      int end = Math.min(start + CHUNK_POINTS, n);
+      while (end < n && !s.isMove(end)) end++;   // Keep polylines whole.
+      raw.reset();
+      int px = 0, py = 0;
+      for(int i = start; i < end; i++) {
+        int x = s.x(i), y = s.y(i);
+        boolean move = s.isMove(i) || i == start;
+        writeVarlong(raw, (zigzag(x - px) & 0xffffffffL) << 1 | (move ? 1 : 0));
+        writeVarint(raw, zigzag(y - py));
+        if (move) writeVarint(raw, palette.indexOf(s.color(i), s.width(i)));
+        px = x; py = y;
+      }
+      int codec = CODEC_RAW;
+      if (compress) {
+        packed.reset();
+        DeflaterOutputStream d = new DeflaterOutputStream(packed);
+        raw.writeTo(d);
+        d.close();
+        if (packed.size() < raw.size()) codec = CODEC_DEFLATE;
+      }
+      out.writeByte(TAG_CHUNK);
+      out.writeInt(end - start);
+      out.writeByte(codec);
+      out.writeInt(raw.size());
+      ByteArrayOutputStream payload = codec == CODEC_RAW ? raw : packed;
+      out.writeInt(payload.size());
+      payload.writeTo(out);
+      start = end;
+      if (p != null && !p.progress(start, n)) return false;
+    }
+    out.writeByte(TAG_END);
+    out.flush();
+    return true;
+  }
+
+  /** Read a whole scribble file, in either format, into one store. */
+  static SegmentStore read(File f) throws IOException {
+    final SegmentStore all = new ColumnarSegmentStore();
+    read(f, new ChunkListener() {
+      public boolean chunk(SegmentStore part, long done, long total) {
+        all.addAll(part);
+        return true;
+      }
+    });
+    return all;
+  }
+
+  /** Decode a whole scribble in the binary format from a buffer. */
+  static SegmentStore read(ByteBuffer b) throws IOException {
+    final SegmentStore all = new ColumnarSegmentStore();
+    read(b, new ChunkListener() {
+      public boolean chunk(SegmentStore part, long done, long total) {
+        all.addAll(part);
+        return true;
+      }
+    });
+    return all;
+  }
+
+  /**
+   * Read a scribble file chunk by chunk.  Binary files are memory mapped
+   * and decoded in place; old gzipped files are imported in one chunk.
+   */
+  static void read(File f, ChunkListener l) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      FileChannel ch = in.getChannel();
+      long size = ch.size();
+      if (isLegacy(ch)) {
+        l.chunk(readLegacy(new FileInputStream(f)), size, size);
+        return;
+      }
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("scribble file too large to map: " + f);
+      MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      read(b, l);
+    }
+    finally { in.close(); }
+  }
+
+  /** Does the channel hold a gzip stream rather than our format? */
+  private static boolean isLegacy(FileChannel ch) throws IOException {
+    ByteBuffer head = ByteBuffer.allocate(2);
+    ch.read(head, 0);
+    return head.position() == 2
+        && (head.get(0) & 0xff) == 0x1f && (head.get(1) & 0xff) == 0x8b;
+  }
+
+  /** Decode a scribble in the binary format from a buffer. */
+  static void read(ByteBuffer b, ChunkListener l) throws IOException {
+    long total = b.remaining();
+    int base = b.position();
+    try {
+      if (b.getInt() != MAGIC) throw new IOException("not a scribble file");
+      int version = b.get();
+      if (version < 1 || version > VERSION)
+        throw new IOException("unsupported scribble version " + version);
+      int pens = b.getInt();
+      if (pens < 0 || pens > Palette.MAX_COLORS)
+        throw new IOException("bad palette size " + pens);
+      Color[] palette = new Color[pens];
+      float[] widths = new float[pens];
+      for(int i = 0; i < pens; i++) {
+        palette[i] = new Color(b.getInt(), true);
+        widths[i] = version >= 2 ? b.getFloat() : 1;
+      }
+
+      Inflater inflater = null;
+      byte[] buffer = null;
+      try {
+        int tag;
+        while ((tag = b.get()) == TAG_CHUNK) {
+          int points = b.getInt();
+          int codec = b.get();
+          int rawLength = b.getInt();
+          int length = b.getInt();
+          if (length < 0 || length > b.remaining())
+            throw new IOException("truncated scribble file");
+          if (codec != CODEC_RAW && codec != CODEC_DEFLATE)
+            throw new IOException("unknown scribble codec " + codec);
+          if (rawLength < 0
+              || (codec == CODEC_RAW ? rawLength != length
+                  : rawLength > (long) length * MAX_INFLATE))
+            throw new IOException("bad scribble chunk length " + rawLength);
+          if (points < 0 || points > rawLength / MIN_POINT_BYTES)
+            throw new IOException("bad scribble chunk size " + points);
+          ByteBuffer payload = b.slice();        // Nothing is allocated
+          payload.limit(length);                 // until the header checks.
+          b.position(b.position() + length);
+          if (codec == CODEC_DEFLATE) {
+            if (inflater == null) inflater = new Inflater();
+            if (buffer == null || buffer.length < rawLength)
+              buffer = new byte[rawLength];
+            inflater.reset();
+            inflater.setInput(payload);
+            if (inflater.inflate(buffer, 0, rawLength) != rawLength)
+              throw new IOException("truncated scribble chunk");
+            payload = ByteBuffer.wrap(buffer, 0, rawLength);
+          }
+          SegmentStore part = decode(payload, points, palette, widths);
+          if (!l.chunk(part, b.position() - base, total)) return;
+        }
+        if (tag != TAG_END) throw new IOException("corrupt scribble file");
+      }
+      finally {
+        if (inflater != null) inflater.end();
+      }
+    }
+    catch (java.nio.BufferUnderflowException e) {
+      throw new IOException("truncated scribble file");
+    }
+    catch (DataFormatException e) {
+      throw new IOException("corrupt scribble chunk: " + e.getMessage());
+    }
+  }
+
+  /** Decode one chunk payload of n points, which must start a stroke. */
+  private static SegmentStore decode(ByteBuffer p, int n, Color[] palette,
+                                     float[] widths) throws IOException {
+    ColumnarSegmentStore s = new ColumnarSegmentStore();
+    s.ensureCapacity(n);
+    int x = 0, y = 0;
+    for(int i = 0; i < n; i++) {
+      long h = readVarlong(p);
+      x += unzigzag((int) (h >>> 1));
+      y += unzigzag(readVarint(p));
+      if ((h & 1) != 0) {
+        int c = readVarint(p);
+        if (c < 0 || c >= palette.length)
+          throw new IOException("bad color index " + c);
+        s.moveTo(x, y, palette[c], widths[c]);
+      }
+      else if (i == 0) throw new IOException("scribble chunk without a move");
+      else s.lineTo(x, y);
+    }
+    return s;
+  }
+
+  /**
+   * Only the classes old scribbles were made of may be deserialized, and
+   * only as deep and as big as they were, since files from anywhere come
+   * through here, the Exporter's among them.
+   */
+  static final ObjectInputFilter LEGACY_FILTER =
+    ObjectInputFilter.Config.createFilter(
+      "maxdepth=8;maxarray=16777216;"
+      + "java.util.ArrayList;java.lang.Object;scribble.Scribble$Line;"
+      + "java.awt.Color;scribble.ColumnarSegmentStore;scribble.Palette;!*");
+
+  /**
+   * Import a scribble saved by older versions: a gzipped serialization
+   * of either a SegmentStore or an ArrayList of Scribble.Line objects.
+   */
+  static SegmentStore readLegacy(InputStream is) throws IOException {
+    ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(is));
+    in.setObjectInputFilter(LEGACY_FILTER);
+    try {
+      Object o = in.readObject();
+      if (o instanceof SegmentStore) return (SegmentStore) o;
+      if (o instanceof ArrayList) return Scribble.fromLines((ArrayList) o);
+      throw new IOException("not a scribble: " + o.getClass().getName());
+    }
+    catch (ClassNotFoundException e) {
+      throw new IOException("not a scribble: " + e.getMessage());
+    }
+    catch (RuntimeException e) {           // Say, more pens than fit.
+      throw new IOException("corrupt scribble: " + e.getMessage());
+    }
+    finally { in.close(); }
+  }
+
+  static int zigzag(int v) { return (v << 1) ^ (v >> 31); }
+  static int unzigzag(int v) { return (v >>> 1) ^ -(v & 1); }
+
+  static void writeVarint(OutputStream out, int v) throws IOException {
+    writeVarlong(out, v & 0xffffffffL);
+  }
+
+  static void writeVarlong(OutputStream out, long v) throws IOException {
+    while ((v & ~0x7fL) != 0) {
+      out.write((int) (v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  static int readVarint(ByteBuffer b) { return (int) readVarlong(b); }
+
+  static long readVarlong(ByteBuffer b) {
+    long v = 0;
+    for(int shift = 0; ; shift += 7) {
+      int c = b.get();
+      v |= (long) (c & 0x7f) << shift;
+      if ((c & 0x80) == 0) return v;
+    }
+  }
+}
@@ -10,6 +10,7 @@ package scribble;
 // Updated to Swing by Konstantin L\uFFFDufer <laufer@acm.org> July 2002
 
 import java.awt.Dimension;
+import java.awt.Frame;
 import java.awt.Graphics;
 import java.awt.PrintJob;
 import java.awt.Toolkit;
@@ -18,52 +19,102 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
-import javax.swing.JScrollPane;
+import javax.swing.JOptionPane;
 
 /**
- * This class places a Scribble component in a ScrollPane container,
- * puts the ScrollPane in a window, and adds a simple pulldown menu system.
+ * This class puts a Scribble component, which scrolls and zooms the
+ * drawing itself, in a window, and adds a simple pulldown menu system.
  * The menu uses menu shortcuts.  Events are handled with anonymous classes.
  */
 public class ScribbleFrame extends JFrame {
-  /** A very simple main() method for our program. */
-  public static void main(String[] args) { new ScribbleFrame(); }
+  /**
+   * A very simple main() method for our program.  If an earlier session
+   * ended without closing its windows, offer to bring its drawings back
+   * from their journals.  If scribble.trace names a file, the input of
+   * the first window is recorded to it; see TraceRecorder.
+   */
+  public static void main(String[] args) {
+    File[] old = Journal.isEnabled() ? Journal.recoverable() : new File[0];
+    if (old.length > 0 &&
+        JOptionPane.showConfirmDialog(null,
+            "Recover " + old.length + " drawing(s) from the last session?",
+            "Scribble", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+      for(int i = 0; i < old.length; i++) new ScribbleFrame(old[i]);
+      return;
+    }
+    for(int i = 0; i < old.length; i++) {     // Not wanted: throw them away.
+      Journal j = Journal.lock(old[i]);
+      if (j != null) j.close(true);
+    }
+    ScribbleFrame f = new ScribbleFrame();
+    String trace = System.getProperty("scribble.trace");
+    if (trace != null) {
+      try {
+        f.scribble.startRecording(new File(trace));
+      }
+      catch (IOException e) {
+        ScribbleIO.error(f.scribble, "Cannot record to " + trace, e);
+      }
+    }
+  }
 
   /** Remember # of open windows so we can quit when last one is closed */
-  protected static int num_windows = 0;
+  protected static final AtomicInteger num_windows = new AtomicInteger();
+
+  /** The scribble component in this window */
+  protected Scribble scribble;
+
+  /** Create a Frame and Menu for the scribble component */
+  public ScribbleFrame() { this(new ScribbleDocument(), null); }
+
+  /**
+   * Create a window whose scribble is recovered from the journal slot
+   * directory recover, or an empty one if recover is null.
+   */
+  public ScribbleFrame(File recover) { this(new ScribbleDocument(), recover); }
 
-  /** Create a Frame, Menu, and ScrollPane for the scribble component */
-  public ScribbleFrame() {
+  /** Create another window showing document d */
+  public ScribbleFrame(ScribbleDocument d) { this(d, null); }
+
+  /** Create a window on document d, recovering it first unless recover is null */
+  protected ScribbleFrame(ScribbleDocument d, File recover) {
     super("ScribbleFrame");                  // Create the window.
-    num_windows++;                           // Count it.
+    num_windows.incrementAndGet();           // Count it.
 
-    Scribble scribble;
-    scribble = new Scribble(this, 500, 500); // Create a bigger scribble area.
-    JScrollPane pane = new JScrollPane(scribble);      // Create a ScrollPane.
-    pane.setPreferredSize(new Dimension(300, 300));
-    this.getContentPane().add(pane);                // Add it to the frame.
+    scribble = new Scribble(this, 500, 500, d); // Create a bigger scribble area.
+    this.getContentPane().add(scribble);      // It pans and zooms by itself.
 
     JMenuBar menubar = new JMenuBar();         // Create a menubar.
     this.setJMenuBar(menubar);                // Add it to the frame.
     JMenu file = new JMenu("File");            // Create a File menu.
     menubar.add(file);                       // Add to menubar.
 
-    // Create three menu items, with menu shortcuts, and add to the menu.
-    JMenuItem n, c, q, p;
+    // Create the menu items, with menu shortcuts, and add to the menu.
+    JMenuItem n, w, c, q, p, o;
     file.add(n = new JMenuItem("New Window", KeyEvent.VK_N));
+    file.add(w = new JMenuItem("New Drawing", KeyEvent.VK_D));
     file.add(c = new JMenuItem("Close Window", KeyEvent.VK_W));
     file.add(p = new JMenuItem("Print Window", KeyEvent.VK_P));
+    file.add(o = new JMenuItem("Connect...", KeyEvent.VK_O));
     file.addSeparator();                     // Put a separator in the menu
     file.add(q = new JMenuItem("Quit", KeyEvent.VK_Q));
 
-    // Create and register action listener objects for the three menu items.
+    // Create and register action listener objects for the menu items.
     n.addActionListener(new ActionListener() {     // Open a new window
+      public void actionPerformed(ActionEvent e) {   // on the same drawing.
+        new ScribbleFrame(scribble.getDocument());
+      }
+    });
+    w.addActionListener(new ActionListener() {     // Or on a new one.
       public void actionPerformed(ActionEvent e) { new ScribbleFrame(); }
     });
     c.addActionListener(new ActionListener() {     // Close this window.
@@ -72,9 +123,12 @@ public class ScribbleFrame extends JFrame {
     p.addActionListener(new ActionListener() {     // Close this window.
       public void actionPerformed(ActionEvent e) { printWindow(); }
     });
+    o.addActionListener(new ActionListener() {     // Share the drawing.
+      public void actionPerformed(ActionEvent e) { connect(); }
+    });
 
     q.addActionListener(new ActionListener() {     // Quit the program.
-      public void actionPerformed(ActionEvent e) { System.exit(0); }
+      public void actionPerformed(ActionEvent e) { quit(); }
     });
 
     // Another event listener, this one to handle window close requests.
@@ -85,14 +139,84 @@ public class ScribbleFrame extends JFrame {
     // Set the window size and pop it up.
     this.pack();
     this.setVisible(true);
+    if (d.getJournal() == null) openJournal(recover); // Not yet journaled.
   }
 
-  /** Close a window.  If this is the last open window, just quit. */
+  /**
+   * Start journaling the scribble, after recovering its drawing from the
+   * given slot directory if that is not null.
+   */
+  void openJournal(File recover) {
+    if (!Journal.isEnabled()) return;
+    Journal j = null;
+    try {
+      j = recover != null ? Journal.lock(recover) : Journal.lockFreeSlot();
+      if (j == null) return;
+      if (recover != null) scribble.getDocument().recover(j);
+      j.reportTo(scribble);
+      scribble.getDocument().startJournal(j);
+    }
+    catch (IOException e) {
+      if (j != null) j.release();
+      ScribbleIO.error(scribble, "Cannot open the journal", e);
+    }
+  }
+
+  /**
+   * Ask for a CollabServer and share the drawing with its other clients;
+   * ours is added after theirs.
+   */
+  void connect() {
+    String where = JOptionPane.showInputDialog(this, "Server (host:port):",
+        "localhost:" + CollabProtocol.DEFAULT_PORT);
+    if (where == null) return;
+    ScribbleDocument d = scribble.getDocument();
+    ScribbleDocument.Link old = d.getLink();
+    if (old != null) old.close();                 // One server at a time.
+    try {
+      int colon = where.lastIndexOf(':');
+      String host = colon < 0 ? where : where.substring(0, colon);
+      int port = colon < 0 ? CollabProtocol.DEFAULT_PORT
+                           : Integer.parseInt(where.substring(colon + 1).trim());
+      new CollabClient(d, host.trim(), port).reportTo(scribble);
+    }
+    catch (IOException e) {
+      ScribbleIO.error(scribble, "Cannot connect to " + where, e);
+    }
+    catch (NumberFormatException e) {
+      ScribbleIO.error(scribble, "Bad port in " + where, e);
+    }
+  }
+
+  /** Stop journaling; the drawing is not wanted any more. */
+  void closeJournal() {
+    scribble.getDocument().closeJournal(true);
+  }
+
+  /**
+   * Close a window, and the journal of its drawing if no other window
+   * shows it.  If this is the last open window, just quit.
+   */
   void close() {
-    if (--num_windows == 0) System.exit(0);
+    scribble.dispose();
+    if (scribble.getDocument().getListenerCount() == 0) {
+      ScribbleDocument.Link l = scribble.getDocument().getLink();
+      if (l != null) l.close();                  // Nobody draws here now.
+      closeJournal();
+    }
+    if (num_windows.decrementAndGet() == 0) System.exit(0);
     else this.dispose();
   }
 
+  /** Quit the program, closing the journals of all windows. */
+  static void quit() {
+    Frame[] frames = Frame.getFrames();
+    for(int i = 0; i < frames.length; i++)
+      if (frames[i] instanceof ScribbleFrame)
+        ((ScribbleFrame) frames[i]).closeJournal();
+    System.exit(0);
+  }
+
   /** Print the current window. */
   void printWindow() {
     Properties printprefs = new Properties();
@@ -0,0 +1,173 @@
+package scribble;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+
+/**
+ * Saves and loads scribbles on a background thread, so that the user can
+ * go on drawing while the file is written or read.  A save writes a
+ * snapshot of the scribble taken when it was started; a load hands each
+ * chunk of the file back to the event dispatch thread as soon as it has
+ * been decoded.  Both show a progress monitor that can cancel them, and
+ * report failures in a dialog.
+ */
+class ScribbleIO {
+  /** One thread does all the file work, so operations run in order. */
+  static final ExecutorService executor =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "scribble-io");
+          t.setDaemon(true);         // Don't keep the program alive.
+          return t;
+        }
+      });
+
+  /** Save scribble s to file f in the background. */
+  static void save(Scribble s, File f) {
+    executor.execute(new SaveTask(s, f));
+  }
+
+  /** Replace the contents of scribble s with file f in the background. */
+  static void load(Scribble s, File f) {
+    executor.execute(new LoadTask(s, f));
+  }
+
+  /** Show an error dialog for a failed operation. */
+  static void error(Scribble s, String what, Throwable e) {
+    JOptionPane.showMessageDialog(s.frame, what + ": " + e.getMessage(),
+                                  "Scribble", JOptionPane.ERROR_MESSAGE);
+  }
+
+  /**
+   * The part shared by saving and loading: a progress monitor that
+   * follows the worker's progress and cancels it when asked to.
+   */
+  abstract static class Task<T, V> extends SwingWorker<T, V>
+      implements PropertyChangeListener {
+    protected Scribble scribble;
+    protected File file;
+    protected ProgressMonitor monitor;
+
+    Task(Scribble scribble, File file, String action) {
+      this.scribble = scribble;
+      this.file = file;
+      monitor = new ProgressMonitor(scribble.frame,
+                                    action + " " + file.getName(), null, 0, 100);
+      addPropertyChangeListener(this);
+    }
+
+    /** Called on the event dispatch thread when the progress changes. */
+    public void propertyChange(PropertyChangeEvent e) {
+      if ("progress".equals(e.getPropertyName()))
+        monitor.setProgress(((Integer) e.getNewValue()).intValue());
+      if (monitor.isCanceled()) cancel(false);
+    }
+
+    void progress(long done, long total) {
+      setProgress(total == 0 ? 100 : (int) Math.min(100, done * 100 / total));
+    }
+
+    /** Close the monitor and report how the operation ended. */
+    protected void done() {
+      monitor.close();
+      if (isCancelled()) return;
+      try { get(); }
+      catch (InterruptedException e) { }
+      catch (ExecutionException e) {
+        error(scribble, "Cannot access " + file, e.getCause());
+      }
+    }
+  }
+
+  /** Writes a snapshot of the scribble. */
+  static class SaveTask extends Task<Boolean, Void> {
+    protected SegmentStore snapshot;
+
+    SaveTask(Scribble scribble, File file) {
+      super(scribble, file, "Saving");
+      scribble.commitStroke();                 // Include what is being drawn.
+      snapshot = scribble.getDocument().snapshot(); // Shares the points.
+    }
+
+    protected Boolean doInBackground() throws Exception {
+      long start = System.nanoTime();
+      boolean done = ScribbleFile.write(snapshot, file,
+          new ScribbleFile.Progress() {
+            public boolean progress(long done, long total) {
+              SaveTask.this.progress(done, total);
+              return !isCancelled();
+            }
+          });
+      if (Metrics.ENABLED && done)
+        Metrics.saved(file.length(), System.nanoTime() - start);
+      return Boolean.valueOf(done);
+    }
+  }
+
+  /**
+   * Reads a scribble and publishes its chunks, simplified, to the event
+   * dispatch thread, which adds them to the scribble.  The scribble is
+   * only cleared when the first chunk arrives, so a file that cannot be
+   * opened or has a bad header leaves it alone; a load that fails or is
+   * cancelled part-way puts the old drawing back.
+   */
+  static class LoadTask extends Task<Void, SegmentStore> {
+    protected Simplifier simplifier;           // Our own, for this thread.
+    protected SegmentStore target;             // The store we load into,
+    protected boolean aborted = false;         // once there is one.
+
+    LoadTask(Scribble scribble, File file) {
+      super(scribble, file, "Loading");
+      simplifier = new Simplifier(scribble.getSimplifier().getTolerance());
+    }
+
+    protected Void doInBackground() throws Exception {
+      long start = System.nanoTime();
+      ScribbleFile.read(file, new ScribbleFile.ChunkListener() {
+        public boolean chunk(SegmentStore part, long done, long total) {
+          if (isCancelled()) return false;
+          SegmentStore simple = new ColumnarSegmentStore();
+          simplifier.simplifyInto(part, simple);
+          publish(simple);
+          progress(done, total);
+          return true;
+        }
+      });
+      if (Metrics.ENABLED && !isCancelled())
+        Metrics.loaded(file.length(), System.nanoTime() - start);
+      return null;
+    }
+
+    protected void process(List<SegmentStore> parts) {
+      if (aborted) return;                     // Late, after a failure.
+      if (target == null) target = scribble.startLoad();
+      for(int i = 0; i < parts.size(); i++)
+        scribble.addLoaded(parts.get(i), target);
+    }
+
+    protected void done() {
+      scribble.getSimplifier().addCounts(simplifier);
+      boolean ok = !isCancelled();
+      if (ok) {
+        try { get(); }
+        catch (Exception e) { ok = false; }
+      }
+      if (!ok) {
+        aborted = true;
+        if (target != null) scribble.abortLoad(target);
+      }
+      else if (target == null) target = scribble.startLoad(); // It was empty.
+      super.done();
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package scribble;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A spatial index over the segments of a SegmentStore, so that a repaint
+ * only has to look at the segments that intersect its clip rectangle.
+ * The plane is cut into square cells, and every cell touched by a
+ * segment's bounding box keeps the index of the segment's end point.
+ * Cells are hashed, so the index does not care how big the drawing gets;
+ * a query bigger than the cells in use looks at those cells instead.
+ * Segments spanning too many cells go into a separate list that every
+ * query returns, which keeps adding a long line cheap.
+ * One thread at a time may change the index while any number of others
+ * query it: a cell publishes a new entry by writing its size last, so a
+ * query sees each cell as it was at some moment.  A query against a
+ * snapshot of the store ignores entries the snapshot does not have, and
+ * one given an ErasedSet ignores the segments of erased strokes, which
+ * stay indexed until the store is compacted.
+ * The index also lists where each polyline starts, so that the stroke a
+ * segment belongs to is found by a binary search.
+ */
+class SegmentIndex {
+  static final int CELL_BITS = 6;                  // 64x64 pixel cells.
+  static final int MAX_CELLS = 64;                 // Per segment, else "big".
+
+  protected ConcurrentHashMap<Long, Cell> cells =
+      new ConcurrentHashMap<Long, Cell>();
+  protected Cell big = new Cell(16);                // Oversized segments.
+  protected Cell starts = new Cell(64);             // Moves, ascending.
+  protected long lastKey = Long.MIN_VALUE;          // Strokes usually stay in
+  protected Cell lastCell;                          // one cell for a while.
+
+  /** The segments of one cell, safe to read while they are added. */
+  static class Cell {
+    int[] data;
+    volatile int size = 0;                          // Written after data.
+
+    Cell(int capacity) { data = new int[capacity]; }
+
+    void add(int v) {
+      int n = size;
+      if (n == data.length) data = Arrays.copyOf(data, n * 2);
+      data[n] = v;
+      size = n + 1;
+    }
+
+    int last() { return data[size - 1]; }
+    void pop() { size--; }
+  }
+
+  /** Index the segment ending at point i of store s. */
+  void add(SegmentStore s, int i) {
+    if (s.isMove(i)) {                              // Not a segment, but
+      starts.add(i);                                // the start of a stroke.
+      return;
+    }
+    int cx1 = Math.min(s.x(i-1), s.x(i)) >> CELL_BITS;
+    int cy1 = Math.min(s.y(i-1), s.y(i)) >> CELL_BITS;
+    int cx2 = Math.max(s.x(i-1), s.x(i)) >> CELL_BITS;
+    int cy2 = Math.max(s.y(i-1), s.y(i)) >> CELL_BITS;
+    if ((long)(cx2 - cx1 + 1) * (cy2 - cy1 + 1) > MAX_CELLS) {
+      big.add(i);
+      return;
+    }
+    for(int cy = cy1; cy <= cy2; cy++)
+      for(int cx = cx1; cx <= cx2; cx++)
+        cell(cx, cy, true).add(i);
+  }
+
+  /** Index the segments ending at points from (inclusive) to to (exclusive). */
+  void addRange(SegmentStore s, int from, int to) {
+    for(int i = from; i < to; i++) add(s, i);
+  }
+
+  /**
+   * Forget the segments ending at points from..to-1, the last ones that
+   * were added.  Call this before they are removed from the store.
+   */
+  void truncate(SegmentStore s, int from, int to) {
+    for(int i = to - 1; i >= from; i--) {
+      if (s.isMove(i)) {
+        if (starts.size > 0 && starts.last() == i) starts.pop();
+        continue;
+      }
+      int cx1 = Math.min(s.x(i-1), s.x(i)) >> CELL_BITS;
+      int cy1 = Math.min(s.y(i-1), s.y(i)) >> CELL_BITS;
+      int cx2 = Math.max(s.x(i-1), s.x(i)) >> CELL_BITS;
+      int cy2 = Math.max(s.y(i-1), s.y(i)) >> CELL_BITS;
+      if ((long)(cx2 - cx1 + 1) * (cy2 - cy1 + 1) > MAX_CELLS) {
+        if (big.size > 0 && big.last() == i) big.pop();
+        continue;
+      }
+      for(int cy = cy1; cy <= cy2; cy++)     // Segments were added in
+        for(int cx = cx1; cx <= cx2; cx++) { // order, so each is last in
+          Cell c = cell(cx, cy, false);      // its cells.
+          if (c != null && c.size > 0 && c.last() == i) c.pop();
+        }
+    }
+  }
+
+  /** Rebuild the index for the whole store. */
+  void rebuild(SegmentStore s) {
+    clear();
+    addRange(s, 0, s.pointCount());
+  }
+
+  void clear() {
+    cells.clear();
+    big.size = 0;
+    starts.size = 0;
+    lastKey = Long.MIN_VALUE;
+    lastCell = null;
+  }
+
+  /**
+   * Return the sorted end point indices of all segments whose bounding box
+   * intersects r, so that they can be drawn in their original order.
+   * The boxes are taken to be as much larger as the widest pen reaches.
+   */
+  IntList query(SegmentStore s, Rectangle r) {
+    return query(s, ErasedSet.NONE, r);
+  }
+
+  /** Like query(s, r), but leaving out the segments of erased strokes. */
+  IntList query(SegmentStore s, ErasedSet erased, Rectangle r) {
+    int m = PolylineRenderer.margin(s.maxWidth());
+    r = new Rectangle(r.x - m, r.y - m, r.width + 2 * m, r.height + 2 * m);
+    IntList hits = new IntList();
+    int cx1 = r.x >> CELL_BITS, cy1 = r.y >> CELL_BITS;
+    int cx2 = (int) (((long) r.x + r.width) >> CELL_BITS);
+    int cy2 = (int) (((long) r.y + r.height) >> CELL_BITS);
+    if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > cells.size()) {
+      for(Map.Entry<Long, Cell> e : cells.entrySet()) { // Zoomed far out:
+        long key = e.getKey().longValue();              // fewer cells are
+        int cx = (int) (key >> 32), cy = (int) key;     // used than asked.
+        if (cx >= cx1 && cx <= cx2 && cy >= cy1 && cy <= cy2)
+          filter(s, erased, e.getValue(), r, hits);
+      }
+    }
+    else
+      for(int cy = cy1; cy <= cy2; cy++)
+        for(int cx = cx1; cx <= cx2; cx++) {
+          Cell c = cell(cx, cy, false);
+          if (c != null) filter(s, erased, c, r, hits);
+        }
+    filter(s, erased, big, r, hits);
+    hits.sortUnique();                              // A segment may be in
+    return hits;                                    // several cells.
+  }
+
+  /**
+   * The point the polyline holding point i of store s starts at: the
+   * last move at or before i.
+   */
+  int strokeStart(SegmentStore s, int i) {
+    int k = startsUpTo(i);
+    return k == 0 ? 0 : starts.data[k - 1];
+  }
+
+  /** The point after the last one of the polyline starting at point start. */
+  int strokeEnd(SegmentStore s, int start) {
+    int k = startsUpTo(start), count = s.pointCount();
+    return k < starts.size ? Math.min(starts.data[k], count) : count;
+  }
+
+  /** The number of starts at or before point i. */
+  private int startsUpTo(int i) {
+    int lo = 0, hi = starts.size;                    // Size before data.
+    int[] data = starts.data;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (data[mid] <= i) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * Add the segments of cell l whose bounding box meets r, and which are
+   * not erased, to hits.
+   */
+  private static void filter(SegmentStore s, ErasedSet erased, Cell l,
+                             Rectangle r, IntList hits) {
+    int rx2 = r.x + r.width, ry2 = r.y + r.height;
+    boolean some = !erased.isEmpty();
+    int n = l.size, count = s.pointCount();          // Size before data.
+    int[] data = l.data;
+    for(int k = 0; k < n; k++) {
+      int i = data[k];
+      if (i >= count || s.isMove(i)) continue;       // Newer than s.
+      int x1 = s.x(i-1), y1 = s.y(i-1), x2 = s.x(i), y2 = s.y(i);
+      if (Math.max(x1, x2) < r.x || Math.min(x1, x2) > rx2 ||
+          Math.max(y1, y2) < r.y || Math.min(y1, y2) > ry2) continue;
+      if (some && erased.contains(i)) continue;
+      hits.add(i);
+    }
+  }
+
+  private Cell cell(int cx, int cy, boolean create) {
+    long key = ((long) cx << 32) | (cy & 0xffffffffL);
+    if (!create) return cells.get(Long.valueOf(key)); // Reads share no state.
+    if (key == lastKey) return lastCell;
+    Cell c = cells.get(Long.valueOf(key));
+    if (c == null) cells.put(Long.valueOf(key), c = new Cell(8));
+    lastKey = key;
+    lastCell = c;
+    return c;
+  }
+}
@@ -0,0 +1,80 @@
+package scribble;
+
+import java.awt.Color;
+
+/**
+ * The storage behind a scribble.  A scribble is kept as a sequence of
+ * points; each point either starts a new polyline ("move") or continues
+ * the previous one, in which case it ends a segment drawn from the point
+ * before it.  Point i therefore stands for the segment (i-1, i) unless
+ * isMove(i) is true.
+ */
+interface SegmentStore {
+
+  /** The number of stored points. */
+  int pointCount();
+
+  /** The number of drawable segments, i.e. points that are not moves. */
+  int segmentCount();
+
+  int x(int i);
+  int y(int i);
+
+  /** The color of the segment ending at point i. */
+  Color color(int i);
+
+  /** The pen width of the segment ending at point i, in pixels. */
+  float width(int i);
+
+  /** The width of the widest pen used in the store, at least 1. */
+  float maxWidth();
+
+  /** True if point i starts a new polyline rather than ending a segment. */
+  boolean isMove(int i);
+
+  /** Start a new polyline at (x, y) in color c, 1 pixel wide. */
+  void moveTo(int x, int y, Color c);
+
+  /** Start a new polyline at (x, y) in color c, width pixels wide. */
+  void moveTo(int x, int y, Color c, float width);
+
+  /** Extend the current polyline to (x, y). */
+  void lineTo(int x, int y);
+
+  /**
+   * Add a single segment, 1 pixel wide.  If it continues the last
+   * polyline in the same color and width only its end point is stored.
+   */
+  void addSegment(int x1, int y1, int x2, int y2, Color c);
+
+  /** Append every point of another store. */
+  void addAll(SegmentStore other);
+
+  /** Throw away all points. */
+  void clear();
+
+  /**
+   * Keep only the first n points.  The rest stay around until something
+   * new is written, so restore() can bring them back.
+   */
+  void truncate(int n);
+
+  /**
+   * Grow the store back to n points after truncate(), which is only
+   * possible if nothing was added in between.
+   */
+  void restore(int n);
+
+  /** A private copy of this store. */
+  SegmentStore copy();
+
+  /**
+   * A read-only view of the points stored so far.  It shares the point
+   * data with this store, so it takes constant time, and it can be read
+   * from another thread while this store goes on growing.
+   */
+  SegmentStore snapshot();
+
+  /** Approximate heap bytes used by the point columns. */
+  long bytesUsed();
+}
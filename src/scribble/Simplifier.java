@@ -0,0 +1,136 @@
+package scribble;
+
+/**
+ * Removes redundant points from strokes.  While a stroke is being drawn,
+ * points closer than the tolerance to the last kept point are dropped;
+ * when it is committed, the Ramer-Douglas-Peucker algorithm removes the
+ * points that lie within the tolerance of the line between their
+ * neighbours.  The simplifier counts the points it was given and the
+ * points it kept, so the reduction it achieves can be reported.
+ */
+class Simplifier {
+  static final double DEFAULT_TOLERANCE = 1.0;    // In pixels.
+
+  protected double tolerance;
+  protected long pointsIn = 0;                    // Points offered,
+  protected long pointsOut = 0;                   // and points kept.
+
+  public Simplifier() {
+    this(Double.parseDouble(System.getProperty("scribble.tolerance",
+                                               "" + DEFAULT_TOLERANCE)));
+  }
+
+  public Simplifier(double tolerance) { setTolerance(tolerance); }
+
+  public void setTolerance(double tolerance) {
+    this.tolerance = Math.max(0, tolerance);
+  }
+
+  public double getTolerance() { return tolerance; }
+
+  /**
+   * Offer a new input point to a stroke being drawn.  Return true if it
+   * was added, or false if it was too close to the last kept point.
+   */
+  boolean add(Stroke s, int x, int y) {
+    s.lastX = x; s.lastY = y; s.raw++;
+    int n = s.size();
+    if (n > 0) {
+      double dx = x - s.x(n-1), dy = y - s.y(n-1);
+      if (dx*dx + dy*dy <= tolerance*tolerance) return false;
+    }
+    s.add(x, y);
+    return true;
+  }
+
+  /** Finish a stroke drawn through add(), returning its simplified form. */
+  Stroke commit(Stroke s) {
+    int n = s.size();
+    if (n > 0 && (s.x(n-1) != s.lastX || s.y(n-1) != s.lastY))
+      s.add(s.lastX, s.lastY);                // Always end where the pen did.
+    Stroke r = simplify(s);
+    pointsIn += s.raw;
+    pointsOut += r.size();
+    return r;
+  }
+
+  /**
+   * Copy every polyline of store src into store dst, simplifying each of
+   * them.  Used for pasted and loaded scribbles.
+   */
+  void simplifyInto(SegmentStore src, SegmentStore dst) {
+    int n = src.pointCount();
+    for(int start = 0; start < n; ) {
+      int end = start + 1;
+      while (end < n && !src.isMove(end)) end++;
+      Stroke s = new Stroke(src.color(start), src.width(start), end - start);
+      for(int i = start; i < end; i++) s.add(src.x(i), src.y(i));
+      Stroke r = simplify(s);
+      r.appendTo(dst);
+      pointsIn += s.size();
+      pointsOut += r.size() < 2 ? 0 : r.size();
+      start = end;
+    }
+  }
+
+  /** Run Ramer-Douglas-Peucker over a stroke. */
+  Stroke simplify(Stroke s) {
+    int n = s.size();
+    if (n < 3 || tolerance == 0) return s;
+    boolean[] keep = new boolean[n];
+    keep[0] = keep[n-1] = true;
+    int[] stack = new int[64];                 // Pairs of (first, last)
+    int top = 0;                               // still to examine.
+    stack[top++] = 0; stack[top++] = n - 1;
+    double tol2 = tolerance * tolerance;
+    while (top > 0) {
+      int last = stack[--top], first = stack[--top];
+      double worst = -1;
+      int split = -1;
+      for(int i = first + 1; i < last; i++) {
+        double d = distance2(s, i, first, last);
+        if (d > worst) { worst = d; split = i; }
+      }
+      if (worst > tol2) {                      // Too far: keep it and look
+        keep[split] = true;                    // at both halves.
+        if (top + 4 > stack.length) {
+          int[] grown = new int[stack.length * 2];
+          System.arraycopy(stack, 0, grown, 0, top);
+          stack = grown;
+        }
+        stack[top++] = first; stack[top++] = split;
+        stack[top++] = split; stack[top++] = last;
+      }
+    }
+    int kept = 0;
+    for(int i = 0; i < n; i++) if (keep[i]) kept++;
+    Stroke r = new Stroke(s.getColor(), s.getWidth(), kept);
+    for(int i = 0; i < n; i++) if (keep[i]) r.add(s.x(i), s.y(i));
+    return r;
+  }
+
+  /** Squared distance from point i to the segment from a to b. */
+  private static double distance2(Stroke s, int i, int a, int b) {
+    double ax = s.x(a), ay = s.y(a);
+    double dx = s.x(b) - ax, dy = s.y(b) - ay;
+    double px = s.x(i) - ax, py = s.y(i) - ay;
+    double len2 = dx*dx + dy*dy;
+    double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, (px*dx + py*dy) / len2));
+    double ex = px - t*dx, ey = py - t*dy;
+    return ex*ex + ey*ey;
+  }
+
+  /** Add the counts of another simplifier to ours. */
+  void addCounts(Simplifier other) {
+    pointsIn += other.pointsIn;
+    pointsOut += other.pointsOut;
+  }
+
+  long getPointsIn() { return pointsIn; }
+  long getPointsOut() { return pointsOut; }
+
+  /** How many input points there were for each point kept (1 = none dropped). */
+  double getReductionRatio() {
+    return pointsOut == 0 ? 1 : (double) pointsIn / pointsOut;
+  }
+}
@@ -0,0 +1,88 @@
+package scribble;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * One stroke of the pen: the polyline drawn between pressing and releasing
+ * the mouse button, in a single color and width.  While the button is down the
+ * stroke lives outside the SegmentStore; it is simplified and appended to
+ * the store when it is committed.
+ */
+class Stroke {
+  protected int[] xs;
+  protected int[] ys;
+  protected int n = 0;
+  protected Color color;
+  protected float width;                   // In pixels.
+  protected int lastX, lastY;              // The last raw input point,
+  protected int raw = 0;                   // and how many there were.
+
+  public Stroke(Color color) { this(color, 64); }
+
+  public Stroke(Color color, int capacity) { this(color, 1, capacity); }
+
+  public Stroke(Color color, float width, int capacity) {
+    this.color = color;
+    this.width = width;
+    xs = new int[Math.max(capacity, 2)];
+    ys = new int[xs.length];
+  }
+
+  int size() { return n; }
+  int x(int i) { return xs[i]; }
+  int y(int i) { return ys[i]; }
+  Color getColor() { return color; }
+  float getWidth() { return width; }
+
+  /** Append a point to the polyline. */
+  void add(int x, int y) {
+    if (n == xs.length) {
+      int[] nx = new int[n * 2], ny = new int[n * 2];
+      System.arraycopy(xs, 0, nx, 0, n);
+      System.arraycopy(ys, 0, ny, 0, n);
+      xs = nx; ys = ny;
+    }
+    xs[n] = x; ys[n] = y; n++;
+  }
+
+  /**
+   * The area that points from..n-1 cover when drawn with the pen, or
+   * null if there are none.
+   */
+  Rectangle bounds(int from) {
+    if (from >= n) return null;
+    int x1 = xs[from], y1 = ys[from], x2 = x1, y2 = y1;
+    for(int i = from + 1; i < n; i++) {
+      x1 = Math.min(x1, xs[i]); x2 = Math.max(x2, xs[i]);
+      y1 = Math.min(y1, ys[i]); y2 = Math.max(y2, ys[i]);
+    }
+    int m = PolylineRenderer.margin(width);
+    return new Rectangle(x1 - m, y1 - m, x2 - x1 + 1 + 2 * m,
+                         y2 - y1 + 1 + 2 * m);
+  }
+
+  /** Draw the stroke as one polyline. */
+  void draw(Graphics g) {
+    if (n < 2) return;
+    g.setColor(color);
+    if (width == 1 || !(g instanceof Graphics2D)) {
+      g.drawPolyline(xs, ys, n);
+      return;
+    }
+    Graphics2D g2 = (Graphics2D) g;
+    java.awt.Stroke old = g2.getStroke();
+    g2.setStroke(PolylineRenderer.pen(width));
+    g2.drawPolyline(xs, ys, n);
+    g2.setStroke(old);
+  }
+
+  /** Add the stroke to a store as a new polyline. */
+  void appendTo(SegmentStore store) {
+    if (n < 2) return;                     // A dot draws nothing.
+    store.moveTo(xs[0], ys[0], color, width);
+    for(int i = 1; i < n; i++) store.lineTo(xs[i], ys[i]);
+  }
+}
@@ -0,0 +1,135 @@
+package scribble;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Line2D;
+
+/**
+ * Questions about whole strokes of a drawing: which stroke is nearest a
+ * point, which strokes a line touches, and which lie inside an area.  A
+ * stroke is named by the index of the point it starts at.  The answers
+ * come from the drawing's SegmentIndex, so they cost about as much as the
+ * segments near the point or in the area, however big the drawing is;
+ * and as the index follows every stroke added or removed, so do they.
+ * Erased strokes are left out, as if they were gone.
+ * A query is made on one state of a document, and its answers are only
+ * good for that state.
+ */
+class StrokeQuery {
+  static final int FIRST_RADIUS = 8;       // Pixels searched first.
+
+  protected final SegmentStore lines;
+  protected final SegmentIndex index;
+  protected final ErasedSet erased;
+
+  StrokeQuery(SegmentStore lines, SegmentIndex index, ErasedSet erased) {
+    this.lines = lines;
+    this.index = index;
+    this.erased = erased;
+  }
+
+  /** The stroke holding point i. */
+  int strokeStart(int i) { return index.strokeStart(lines, i); }
+
+  /** The point after the last one of the stroke starting at point start. */
+  int strokeEnd(int start) { return index.strokeEnd(lines, start); }
+
+  /**
+   * The stroke whose pen passes nearest (x, y), and at most limit pixels
+   * from it, or -1 if there is none.  The search starts close by and
+   * doubles its reach until it finds one.
+   */
+  int nearest(double x, double y, double limit) {
+    double best = limit;
+    int found = -1;
+    for(double r = Math.min(FIRST_RADIUS, limit); ; r = Math.min(r * 2, limit)) {
+      IntList some = index.query(lines, erased, box(x, y, x, y, r));
+      for(int k = 0; k < some.size(); k++) {
+        int i = some.get(k);
+        double d = Line2D.ptSegDist(lines.x(i-1), lines.y(i-1),
+                                    lines.x(i), lines.y(i), x, y)
+                   - lines.width(i) / 2;          // To the edge of the pen.
+        if (d <= best) { best = d; found = i; }
+      }
+      if ((found >= 0 && best <= r) || r >= limit) break; // Nothing nearer
+    }                                                      // is further out.
+    return found < 0 ? -1 : strokeStart(found);
+  }
+
+  /**
+   * The strokes whose pens pass within radius of the line from (x1, y1)
+   * to (x2, y2), in order.
+   */
+  IntList touching(double x1, double y1, double x2, double y2, double radius) {
+    IntList some = index.query(lines, erased, box(x1, y1, x2, y2, radius));
+    IntList hits = new IntList();
+    for(int k = 0; k < some.size(); k++) {
+      int i = some.get(k);
+      if (hits.size() > 0 && i < strokeEnd(hits.last())) continue; // Got it.
+      if (distance(lines.x(i-1), lines.y(i-1), lines.x(i), lines.y(i),
+                   x1, y1, x2, y2) - lines.width(i) / 2 <= radius)
+        hits.add(strokeStart(i));
+    }
+    return hits;
+  }
+
+  /** The strokes all of whose points are inside area, in order. */
+  IntList inside(Shape area) {
+    IntList some = index.query(lines, erased, area.getBounds());
+    IntList hits = new IntList();
+    int checked = -1;                            // Segments of one stroke
+    for(int k = 0; k < some.size(); k++) {       // come together.
+      int start = strokeStart(some.get(k));
+      if (start == checked) continue;
+      checked = start;
+      int end = strokeEnd(start);
+      boolean in = true;
+      for(int i = start; i < end && in; i++)
+        in = area.contains(lines.x(i), lines.y(i));
+      if (in) hits.add(start);
+    }
+    return hits;
+  }
+
+  /** The area the given strokes cover, or null if there are none. */
+  Rectangle bounds(IntList strokes) {
+    Rectangle r = null;
+    for(int k = 0; k < strokes.size(); k++) {
+      int start = strokes.get(k);
+      Rectangle b = ScribbleDocument.bounds(lines, start, strokeEnd(start));
+      if (b != null) r = r == null ? b : r.union(b);
+    }
+    return r;
+  }
+
+  /** A new store holding just the given strokes, in order. */
+  SegmentStore copy(IntList strokes) {
+    ColumnarSegmentStore c = new ColumnarSegmentStore();
+    for(int k = 0; k < strokes.size(); k++) {
+      int start = strokes.get(k);
+      ScribbleDocument.copyInto(lines, start, strokeEnd(start), c);
+    }
+    return c;
+  }
+
+  /** The pixels within r of the box around two points. */
+  private static Rectangle box(double x1, double y1, double x2, double y2,
+                               double r) {
+    int bx1 = (int) Math.floor(Math.min(x1, x2) - r);
+    int by1 = (int) Math.floor(Math.min(y1, y2) - r);
+    int bx2 = (int) Math.ceil(Math.max(x1, x2) + r);
+    int by2 = (int) Math.ceil(Math.max(y1, y2) + r);
+    return new Rectangle(bx1, by1, bx2 - bx1 + 1, by2 - by1 + 1);
+  }
+
+  /** The distance between two line segments. */
+  static double distance(double ax1, double ay1, double ax2, double ay2,
+                         double bx1, double by1, double bx2, double by2) {
+    if (Line2D.linesIntersect(ax1, ay1, ax2, ay2, bx1, by1, bx2, by2))
+      return 0;
+    return Math.min(Math.min(Line2D.ptSegDist(ax1, ay1, ax2, ay2, bx1, by1),
+                             Line2D.ptSegDist(ax1, ay1, ax2, ay2, bx2, by2)),
+                    Math.min(Line2D.ptSegDist(bx1, by1, bx2, by2, ax1, ay1),
+                             Line2D.ptSegDist(bx1, by1, bx2, by2, ax2, ay2)));
+  }
+}
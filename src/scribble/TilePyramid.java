@@ -0,0 +1,311 @@
+package scribble;
+
+import java.awt.AlphaComposite;
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pictures of a drawing at 1/2, 1/4, ... 1/2^LEVELS of its size, cut into
+ * square tiles, for views that are zoomed out.  A view at zoom z paints
+ * the tiles of the level whose scale is the next one up from z, shrunk
+ * by less than half, so a paint draws about the same number of tiles
+ * however far out it is and however big the drawing is.
+ *
+ * Tiles are only drawn when a view first needs them, by a background
+ * thread, from a snapshot of the document.  Until a tile is ready the
+ * view shows part of a coarser one, if it has it, scaled up.  Points the
+ * document gains after that are drawn into the tiles of the level last
+ * shown (on a copy, which then replaces the picture, so that a paint
+ * never sees a half drawn tile); the tiles of the other levels, and all
+ * tiles that points were removed from, are marked stale and redrawn the
+ * next time they are shown.  Views draw the points the tiles do not
+ * show yet (getApplied() on) themselves, on top.
+ *
+ * The tiles are kept in least recently used order, at most
+ * scribble.tiles of them (256 by default, 256 KB each).
+ */
+class TilePyramid implements Runnable {
+  static final int TILE_BITS = 8;
+  static final int TILE = 1 << TILE_BITS;          // Pixels on a side.
+  static final int LEVELS = 16;                    // Down to 1/65536.
+  static final double MAX_ZOOM = 0.5;              // Zooms that use tiles.
+  static final int OVERLAY = 16384;                // Points a view draws over
+                                                   // the tiles at most.
+  static final int ANCESTORS = 3;                  // Coarser levels to try.
+
+  /** One tile, and its picture once it is drawn. */
+  static class Tile {
+    final int level, tx, ty;
+    volatile BufferedImage image = null;           // Transparent where empty.
+    volatile boolean stale = true;                 // Redraw before showing?
+    boolean queued = false;                        // These two are locked
+    long wanted = 0;                               // by the pyramid.
+
+    Tile(int level, int tx, int ty) {
+      this.level = level; this.tx = tx; this.ty = ty;
+    }
+
+    /** The area of the drawing the tile shows. */
+    Rectangle area() {
+      int shift = TILE_BITS + level;
+      return new Rectangle(tx << shift, ty << shift, 1 << shift, 1 << shift);
+    }
+  }
+
+  protected final ScribbleDocument document;
+  protected final Component view;                  // Repainted as tiles arrive.
+  protected final int capacity;
+  protected final LinkedHashMap<Long, Tile> tiles; // Locked by this, like
+  protected final ArrayDeque<ScribbleDocument.Change> edits =  // these two.
+      new ArrayDeque<ScribbleDocument.Change>();
+  protected final ArrayDeque<Tile> builds = new ArrayDeque<Tile>();
+  protected boolean antialias;
+  protected long generation = 0;                   // Paints so far.
+  protected Thread builder = null;
+  protected boolean closed = false;
+  protected boolean busy = false;                  // Drawing or applying.
+  protected PolylineRenderer renderer;             // The builder's own.
+  protected volatile int applied;                  // Points all tiles show.
+  protected volatile int shown = 0;                // Level painted last.
+
+  public TilePyramid(ScribbleDocument document, Component view,
+                     boolean antialias) {
+    this.document = document;
+    this.view = view;
+    this.antialias = antialias;
+    renderer = antialias ? new PathRenderer() : new PolylineRenderer();
+    applied = document.state().lines.pointCount();  // No tiles, so all.
+    capacity = Math.max(16, Integer.getInteger("scribble.tiles", 256).intValue());
+    tiles = new LinkedHashMap<Long, Tile>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Long, Tile> e) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /** The level to paint at zoom z: the one with the next larger scale. */
+  static int level(double zoom) {
+    int level = 0;
+    while (level < LEVELS && Math.scalb(1.0, -(level + 1)) >= zoom) level++;
+    return Math.max(level, 1);
+  }
+
+  /** The points of the drawing from this one on are not in all tiles yet. */
+  int getApplied() { return applied; }
+
+  /**
+   * Paint the tiles covering the clip of g, a Graphics in the view's own
+   * pixels, for a view at the given zoom whose top left corner shows
+   * point (x, y) of the drawing.  Missing and stale tiles are asked for.
+   */
+  void paint(Graphics2D g, double zoom, double x, double y) {
+    Rectangle clip = g.getClipBounds();
+    if (clip == null) clip = new Rectangle(view.getWidth(), view.getHeight());
+    int level = level(zoom);
+    shown = level;
+    double span = Math.scalb((double) TILE, level);  // Drawing pixels a tile.
+    int tx1 = (int) Math.floor((x + clip.x / zoom) / span);
+    int ty1 = (int) Math.floor((y + clip.y / zoom) / span);
+    int tx2 = (int) Math.floor((x + (clip.x + clip.width) / zoom) / span);
+    int ty2 = (int) Math.floor((y + (clip.y + clip.height) / zoom) / span);
+    Object hint = g.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                       RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    synchronized (this) { generation++; }
+    for(int ty = ty1; ty <= ty2; ty++)
+      for(int tx = tx1; tx <= tx2; tx++) {
+        int sx1 = screen(tx * span, x, zoom), sx2 = screen((tx + 1) * span, x, zoom);
+        int sy1 = screen(ty * span, y, zoom), sy2 = screen((ty + 1) * span, y, zoom);
+        Tile t = tile(level, tx, ty, true);
+        BufferedImage image = t.image;
+        if (image != null)
+          g.drawImage(image, sx1, sy1, sx2, sy2, 0, 0, TILE, TILE, null);
+        else drawAncestor(g, level, tx, ty, sx1, sy1, sx2, sy2);
+        if (image == null || t.stale) request(t);
+      }
+    if (hint != null) g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, hint);
+  }
+
+  /** Where drawing coordinate v goes in a view at origin o and zoom z. */
+  private static int screen(double v, double o, double z) {
+    return (int) Math.floor((v - o) * z);          // The same for the edge
+  }                                                // two tiles share.
+
+  /** Stand in for a missing tile with part of a coarser one, if we have it. */
+  protected void drawAncestor(Graphics2D g, int level, int tx, int ty,
+                              int sx1, int sy1, int sx2, int sy2) {
+    for(int k = 1; k <= ANCESTORS && level + k <= LEVELS; k++) {
+      Tile a = tile(level + k, tx >> k, ty >> k, false);
+      BufferedImage image = a == null ? null : a.image;
+      if (image == null) continue;
+      int part = TILE >> k;
+      int ox = (tx & ((1 << k) - 1)) * part, oy = (ty & ((1 << k) - 1)) * part;
+      g.drawImage(image, sx1, sy1, sx2, sy2, ox, oy, ox + part, oy + part, null);
+      return;
+    }
+  }
+
+  /** The tile at a level and position, made if create is true. */
+  protected synchronized Tile tile(int level, int tx, int ty, boolean create) {
+    Long key = Long.valueOf((long) level << 56
+                            | ((long) tx & 0xfffffffL) << 28
+                            | ((long) ty & 0xfffffffL));
+    Tile t = tiles.get(key);
+    if (t == null && create) tiles.put(key, t = new Tile(level, tx, ty));
+    return t;
+  }
+
+  /** Have the builder draw tile t, before the tiles asked for earlier. */
+  protected synchronized void request(Tile t) {
+    t.wanted = generation;
+    if (t.queued || closed) return;
+    t.queued = true;
+    builds.addLast(t);
+    wake();
+  }
+
+  /** Tell the tiles about a change to the document, in order. */
+  synchronized void changed(ScribbleDocument.Change c) {
+    if (closed) return;
+    edits.addLast(c);
+    wake();
+  }
+
+  /** Throw all tiles away, and draw them antialiased or not from now on. */
+  synchronized void reset(boolean antialias) {
+    this.antialias = antialias;
+    changed(new ScribbleDocument.Change(ScribbleDocument.Change.REPLACED,
+                                        document.state().lines, 0, 0, null));
+  }
+
+  /** Stop the builder; the pyramid is not used any more. */
+  synchronized void close() {
+    closed = true;
+    tiles.clear();
+    builds.clear();
+    notifyAll();
+  }
+
+  /** Number of tiles kept. */
+  synchronized int size() { return tiles.size(); }
+
+  /** True if the builder has nothing left to do. */
+  synchronized boolean isIdle() {
+    return !busy && edits.isEmpty() && builds.isEmpty();
+  }
+
+  private void wake() {
+    if (builder == null) {
+      builder = new Thread(this, "scribble-tiles");
+      builder.setDaemon(true);
+      builder.setPriority(Thread.NORM_PRIORITY - 1);  // Input comes first.
+      builder.start();
+    }
+    notifyAll();
+  }
+
+  /** The builder: apply the edits, then draw the tiles asked for last first. */
+  public void run() {
+    while (true) {
+      ScribbleDocument.Change c = null;
+      Tile t = null;
+      boolean aa;
+      synchronized (this) {
+        busy = false;
+        try {
+          while (!closed && edits.isEmpty() && builds.isEmpty()) wait();
+        }
+        catch (InterruptedException e) { return; }
+        if (closed) return;
+        busy = true;
+        if (!edits.isEmpty()) c = edits.removeFirst();
+        else {
+          t = builds.removeLast();
+          t.queued = false;
+          if (t.wanted < generation - 1) continue;  // Scrolled out of view.
+        }
+        aa = antialias;
+      }
+      if (c != null) apply(c, aa);
+      else build(t);
+    }
+  }
+
+  /** Bring the tiles up to date with change c. */
+  protected void apply(ScribbleDocument.Change c, boolean aa) {
+    if (c.type == ScribbleDocument.Change.REPLACED) {
+      renderer = aa ? new PathRenderer() : new PolylineRenderer();
+      synchronized (this) {
+        tiles.clear();
+        for(Tile t : builds) t.queued = false;
+        builds.clear();
+      }
+      applied = c.lines.pointCount();
+      view.repaint();
+      return;
+    }
+    if (c.bounds == null) return;                   // Nothing was added.
+    if (c.type == ScribbleDocument.Change.REMOVED)
+      renderer.invalidate(c.from);
+    SegmentStore lines = document.state().lines;   // The renderer's pieces
+    int level = shown;                              // may be newer than c's.
+    Tile[] all;
+    synchronized (this) { all = tiles.values().toArray(new Tile[tiles.size()]); }
+    for(int k = 0; k < all.length; k++) {
+      Tile t = all[k];
+      if (t.image == null || !t.area().intersects(c.bounds)) continue;
+      if (c.type == ScribbleDocument.Change.APPENDED && t.level == level
+          && !t.stale) {
+        BufferedImage image = copy(t.image);
+        Graphics2D g = graphics(image, t);
+        renderer.drawRange(g, lines, c.from, Math.min(c.to, lines.pointCount()));
+        g.dispose();
+        t.image = image;
+      }
+      else t.stale = true;
+    }
+    applied = c.type == ScribbleDocument.Change.APPENDED ? c.to
+                                                         : c.lines.pointCount();
+    if (c.type == ScribbleDocument.Change.REMOVED) view.repaint();
+  }
+
+  /** Draw tile t from the document as it is now. */
+  protected void build(Tile t) {
+    ScribbleDocument.State s = document.state();
+    BufferedImage image = new BufferedImage(TILE, TILE,
+                                            BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = graphics(image, t);
+    Rectangle area = t.area();
+    g.clip(area);
+    renderer.drawSome(g, s.lines, s.query(area));
+    g.dispose();
+    t.stale = false;
+    t.image = image;
+    view.repaint();
+  }
+
+  /** A Graphics drawing into image in the coordinates of the drawing. */
+  private static Graphics2D graphics(BufferedImage image, Tile t) {
+    Graphics2D g = image.createGraphics();
+    double scale = Math.scalb(1.0, -t.level);
+    Rectangle area = t.area();
+    g.scale(scale, scale);
+    g.translate(-area.x, -area.y);
+    return g;
+  }
+
+  private static BufferedImage copy(BufferedImage image) {
+    BufferedImage c = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = c.createGraphics();
+    g.setComposite(AlphaComposite.Src);
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return c;
+  }
+}
@@ -0,0 +1,163 @@
+package scribble;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.swing.AbstractButton;
+
+/**
+ * Writes the input of a Scribble view to an InputTrace file as it
+ * arrives: mouse presses, drags, releases and wheel turns, the commands of
+ * the popup menu and keys, and changes of size, each with the time the
+ * view got it.  Moves without a button are left out, since the view does
+ * nothing with them.  The view calls the recorder on the event dispatch
+ * thread, before it handles each event; events are buffered and only
+ * written out in big blocks.  If writing fails, recording stops and the
+ * trace ends there.
+ */
+class TraceRecorder extends ComponentAdapter {
+  static final int BUFFER = 1 << 16;
+
+  protected Scribble scribble;
+  protected File file;
+  protected DataOutputStream out;
+  protected long last;                     // System.nanoTime() of the last
+  protected int lastX, lastY;              // event, where the last mouse
+  protected int modifiers = 0;             // event was, and its modifiers.
+  protected long events = 0;
+
+  /** Start recording scribble s to file f, beginning with its state. */
+  TraceRecorder(Scribble s, File f) throws IOException {
+    scribble = s;
+    file = f;
+    ByteArrayOutputStream drawing = new ByteArrayOutputStream();
+    ScribbleFile.write(s.getDocument().snapshot(), drawing, true);
+    out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(f), BUFFER));
+    try {
+      out.writeInt(InputTrace.MAGIC);
+      out.writeByte(InputTrace.VERSION);
+      ScribbleFile.writeVarint(out, s.getWidth());
+      ScribbleFile.writeVarint(out, s.getHeight());
+      out.writeDouble(s.zoom);
+      out.writeDouble(s.view_x);
+      out.writeDouble(s.view_y);
+      ScribbleFile.writeVarint(out, s.getTool());
+      out.writeInt(s.current_color.getRGB());
+      out.writeFloat(s.current_width);
+      out.writeByte((s.isAntialiased() ? InputTrace.ANTIALIAS : 0)
+                    | (s.isRetained() ? InputTrace.RETAINED : 0)
+                    | (s.isParallel() ? InputTrace.PARALLEL : 0));
+      out.writeInt(drawing.size());
+      drawing.writeTo(out);
+    }
+    catch (IOException e) {
+      out.close();
+      throw e;
+    }
+    last = System.nanoTime();
+    s.addComponentListener(this);
+  }
+
+  /** Record a mouse or wheel event. */
+  void mouse(MouseEvent e) {
+    int type;
+    switch (e.getID()) {
+    case MouseEvent.MOUSE_PRESSED: type = InputTrace.PRESS; break;
+    case MouseEvent.MOUSE_RELEASED: type = InputTrace.RELEASE; break;
+    case MouseEvent.MOUSE_DRAGGED: type = InputTrace.DRAG; break;
+    case MouseEvent.MOUSE_WHEEL: type = InputTrace.WHEEL; break;
+    default: return;
+    }
+    if (out == null) return;
+    try {
+      begin(type | (e.isPopupTrigger() ? InputTrace.POPUP : 0),
+            e.getModifiersEx());
+      ScribbleFile.writeVarint(out, ScribbleFile.zigzag(e.getX() - lastX));
+      ScribbleFile.writeVarint(out, ScribbleFile.zigzag(e.getY() - lastY));
+      lastX = e.getX(); lastY = e.getY();
+      if (type == InputTrace.PRESS || type == InputTrace.RELEASE)
+        out.writeByte(e.getButton());
+      if (type == InputTrace.WHEEL) {
+        double r = ((MouseWheelEvent) e).getPreciseWheelRotation();
+        int notches = (int) r;
+        if (notches == r)
+          ScribbleFile.writeVarint(out, ScribbleFile.zigzag(notches) << 1);
+        else {
+          ScribbleFile.writeVarint(out, 1);
+          out.writeDouble(r);
+        }
+      }
+    }
+    catch (IOException x) { failed(x); }
+  }
+
+  /** Record a command from the popup menu or a key. */
+  void action(ActionEvent e) {
+    if (out == null) return;
+    Object source = e.getSource();
+    try {
+      begin(InputTrace.ACTION, modifiers);
+      out.writeByte(!(source instanceof AbstractButton) ? InputTrace.NO_TOGGLE
+                    : ((AbstractButton) source).isSelected() ? InputTrace.TOGGLE_ON
+                    : InputTrace.TOGGLE_OFF);
+      byte[] command = e.getActionCommand().getBytes(StandardCharsets.UTF_8);
+      ScribbleFile.writeVarint(out, command.length);
+      out.write(command);
+    }
+    catch (IOException x) { failed(x); }
+  }
+
+  public void componentResized(ComponentEvent e) {
+    if (out == null) return;
+    try {
+      begin(InputTrace.RESIZE, modifiers);
+      ScribbleFile.writeVarint(out, scribble.getWidth());
+      ScribbleFile.writeVarint(out, scribble.getHeight());
+    }
+    catch (IOException x) { failed(x); }
+  }
+
+  /** Write the type and time of an event, and its modifiers if new. */
+  private void begin(int type, int mods) throws IOException {
+    long now = System.nanoTime();
+    long micros = Math.max(0, now - last) / 1000;
+    last += micros * 1000;                 // Keep the remainder.
+    if (mods != modifiers) type |= InputTrace.MODIFIERS;
+    out.writeByte(type);
+    ScribbleFile.writeVarlong(out, micros);
+    if (mods != modifiers) ScribbleFile.writeVarint(out, modifiers = mods);
+    events++;
+  }
+
+  long getEvents() { return events; }
+  File getFile() { return file; }
+
+  /** End the trace and close the file. */
+  void close() {
+    scribble.removeComponentListener(this);
+    if (out == null) return;
+    try {
+      out.writeByte(InputTrace.END);
+      out.close();
+    }
+    catch (IOException x) { failed(x); }
+    out = null;
+  }
+
+  private void failed(IOException x) {
+    System.err.println("cannot write " + file + ": " + x);
+    try { out.close(); } catch (IOException ignored) { }
+    out = null;
+  }
+}
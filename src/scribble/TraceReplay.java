@@ -0,0 +1,344 @@
+package scribble;
+
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.datatransfer.Clipboard;
+import java.awt.event.ActionEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JComponent;
+import javax.swing.RepaintManager;
+
+/**
+ * Plays an InputTrace back into a Scribble view, and reports how well the
+ * view kept up: how long it took from each input event until a paint
+ * showed it, and how long the paints took.
+ *
+ *   java -cp scribble.jar scribble.TraceReplay [options] trace
+ *
+ *   -live          replay into a ScribbleFrame on the screen (by default
+ *                  the view is headless, and paints into an image when
+ *                  Swing would paint it on the screen)
+ *   -realtime      keep the timing of the trace (by default each event is
+ *                  fed as soon as the view has handled the one before)
+ *   -repeat n      replay n times, each from the start (1)
+ *
+ * Every run starts from the state the trace begins with: the drawing, the
+ * view, the pen, the tool and the rendering options.  Commands that open
+ * dialogs (print, save and load) are skipped, events that opened the
+ * popup menu too, and copy and paste go through a clipboard of the
+ * replay's own; so every run ends with the same drawing, whose checksum
+ * is printed to show it.
+ *
+ * An event's latency runs from when it was due (in real time, when it
+ * happened in the trace; else when it was handed to the event queue) to
+ * the end of the first paint after the view handled it.  Commands and
+ * resizes are not counted, and nor are events no paint followed.
+ */
+public class TraceReplay implements Scribble.PaintListener {
+  static final long SETTLE_MS = 200;       // Quiet time that ends a run.
+
+  protected InputTrace trace;
+  protected boolean live, realtime;
+  protected Scribble scribble;
+  protected ScribbleFrame frame;           // If live.
+  protected Repaints repaints;             // If not.
+
+  protected long[] waiting = new long[64]; // Due times of events handled
+  protected int nwaiting = 0;              // since the last paint.
+  protected long[] latencies = new long[1024];
+  protected int nlatencies = 0;
+  protected long[] paints = new long[1024];
+  protected int npaints = 0;
+  protected int events = 0;
+  protected long elapsed;
+
+  public static void main(String[] args) throws Exception {
+    boolean live = false, realtime = false;
+    int repeat = 1;
+    String file = null;
+    for(int i = 0; i < args.length; i++) {
+      String a = args[i];
+      if (a.equals("-live")) live = true;
+      else if (a.equals("-realtime")) realtime = true;
+      else if (a.equals("-repeat") && i + 1 < args.length)
+        repeat = Integer.parseInt(args[++i]);
+      else if (file == null && !a.startsWith("-")) file = a;
+      else file = null;
+    }
+    if (file == null) {
+      System.err.println("usage: TraceReplay [-live] [-realtime] [-repeat n] trace");
+      System.exit(2);
+    }
+    if (!live) System.setProperty("java.awt.headless", "true");
+    InputTrace trace;
+    try {
+      trace = InputTrace.read(new File(file));
+    }
+    catch (IOException e) {
+      System.err.println("cannot read " + file + ": " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    System.out.println(String.format(Locale.ROOT,
+        "%s: %d events over %.1f s, %dx%d view, %d points to start with",
+        file, trace.events.size(), trace.getDuration() / 1e9, trace.width,
+        trace.height, trace.drawing.pointCount()));
+    for(int run = 1; run <= repeat; run++) {
+      TraceReplay r = new TraceReplay(trace, live, realtime);
+      r.run();
+      System.out.println("run " + run + ": " + r.report());
+    }
+    System.exit(0);
+  }
+
+  public TraceReplay(InputTrace trace, boolean live, boolean realtime) {
+    this.trace = trace;
+    this.live = live;
+    this.realtime = realtime;
+  }
+
+  /** Replay the trace once, from its start state, and wait for the view. */
+  void run() throws Exception {
+    EventQueue.invokeAndWait(new Runnable() {
+      public void run() { setUp(); }
+    });
+    long start = System.nanoTime();
+    for(int k = 0; k < trace.events.size(); k++) {
+      final InputTrace.Event e = trace.events.get(k);
+      if (e.popup || (e.type == InputTrace.ACTION && isSkipped(e.command)))
+        continue;
+      if (realtime) {
+        long wait;
+        while ((wait = start + e.time - System.nanoTime()) > 0)
+          LockSupport.parkNanos(wait);
+      }
+      final long due = realtime ? start + e.time : System.nanoTime();
+      Runnable deliver = new Runnable() {
+        public void run() { deliver(e, due); }
+      };
+      if (realtime) EventQueue.invokeLater(deliver);  // May queue up,
+      else EventQueue.invokeAndWait(deliver);         // or never does.
+    }
+    EventQueue.invokeAndWait(new Runnable() {
+      public void run() { }
+    });
+    elapsed = System.nanoTime() - start;
+    final boolean[] quiet = new boolean[1];
+    while (!quiet[0]) {                    // Let the last frames and paints
+      final int before = paintCount();     // come out.
+      Thread.sleep(SETTLE_MS);
+      EventQueue.invokeAndWait(new Runnable() {
+        public void run() {
+          quiet[0] = npaints == before
+                     && !scribble.getBatcher().timer.isRunning()
+                     && (repaints == null || repaints.dirty == null);
+        }
+      });
+    }
+    EventQueue.invokeAndWait(new Runnable() {
+      public void run() { tearDown(); }
+    });
+  }
+
+  /** Make the view, in the state the trace starts in. */
+  protected void setUp() {
+    ScribbleDocument d = new ScribbleDocument(trace.drawing.copy());
+    if (live) {
+      frame = new ScribbleFrame(d);
+      scribble = frame.scribble;
+      scribble.setPreferredSize(new Dimension(trace.width, trace.height));
+      frame.pack();
+    }
+    else {
+      repaints = new Repaints();
+      RepaintManager.setCurrentManager(repaints);
+      scribble = new Scribble(null, trace.width, trace.height, d);
+      scribble.setSize(trace.width, trace.height);
+    }
+    scribble.setView(trace.zoom, trace.viewX, trace.viewY);
+    scribble.setTool(trace.tool);
+    scribble.setPenColor(trace.color);
+    scribble.setPenWidth(trace.penWidth);
+    scribble.setAntialiased((trace.flags & InputTrace.ANTIALIAS) != 0);
+    scribble.setRetained((trace.flags & InputTrace.RETAINED) != 0);
+    scribble.setParallel((trace.flags & InputTrace.PARALLEL) != 0);
+    scribble.setClipboard(new Clipboard("replay"));
+    scribble.setPaintListener(this);
+  }
+
+  protected void tearDown() {
+    scribble.setPaintListener(null);
+    scribble.dispose();
+    if (frame != null) frame.dispose();
+    if (repaints != null) RepaintManager.setCurrentManager(null);
+  }
+
+  /** Commands that would wait for someone at the screen. */
+  static boolean isSkipped(String command) {
+    return command.equals("print") || command.equals("save")
+        || command.equals("load") || command.equals("record");
+  }
+
+  /** Hand event e, due at time due, to the view. */
+  protected void deliver(InputTrace.Event e, long due) {
+    long when = System.currentTimeMillis();
+    switch (e.type) {
+    case InputTrace.PRESS:
+      scribble.mousePressed(new MouseEvent(scribble, MouseEvent.MOUSE_PRESSED,
+          when, e.modifiers, e.x, e.y, 1, false, e.button));
+      break;
+    case InputTrace.RELEASE:
+      scribble.mouseReleased(new MouseEvent(scribble, MouseEvent.MOUSE_RELEASED,
+          when, e.modifiers, e.x, e.y, 1, false, e.button));
+      break;
+    case InputTrace.DRAG:
+      scribble.mouseDragged(new MouseEvent(scribble, MouseEvent.MOUSE_DRAGGED,
+          when, e.modifiers, e.x, e.y, 0, false, MouseEvent.NOBUTTON));
+      break;
+    case InputTrace.WHEEL:
+      scribble.mouseWheelMoved(new MouseWheelEvent(scribble,
+          MouseEvent.MOUSE_WHEEL, when, e.modifiers, e.x, e.y, e.x, e.y, 0,
+          false, MouseWheelEvent.WHEEL_UNIT_SCROLL, 3, (int) e.rotation,
+          e.rotation));
+      break;
+    case InputTrace.ACTION:
+      Object source = scribble;
+      if (e.toggle != InputTrace.NO_TOGGLE) {   // As the check box was.
+        JCheckBoxMenuItem item = new JCheckBoxMenuItem();
+        item.setSelected(e.toggle == InputTrace.TOGGLE_ON);
+        source = item;
+      }
+      scribble.actionPerformed(new ActionEvent(source,
+          ActionEvent.ACTION_PERFORMED, e.command));
+      return;
+    case InputTrace.RESIZE:
+      if (frame == null) scribble.setSize(e.x, e.y);
+      else {
+        scribble.setPreferredSize(new Dimension(e.x, e.y));
+        frame.pack();
+      }
+      return;
+    default:
+      return;
+    }
+    events++;
+    if (nwaiting == waiting.length) waiting = Arrays.copyOf(waiting, nwaiting * 2);
+    waiting[nwaiting++] = due;
+  }
+
+  /** A paint of the view ended: it showed every event handled before it. */
+  public void painted(Scribble s, long start, long end) {
+    if (npaints == paints.length) paints = Arrays.copyOf(paints, npaints * 2);
+    paints[npaints++] = end - start;
+    if (nlatencies + nwaiting > latencies.length)
+      latencies = Arrays.copyOf(latencies,
+                                Math.max(nlatencies + nwaiting, nlatencies * 2));
+    for(int k = 0; k < nwaiting; k++) latencies[nlatencies++] = end - waiting[k];
+    nwaiting = 0;
+  }
+
+  private int paintCount() {
+    final int[] n = new int[1];
+    try {
+      EventQueue.invokeAndWait(new Runnable() {
+        public void run() { n[0] = npaints; }
+      });
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    return n[0];
+  }
+
+  /** What the run did, in three lines. */
+  String report() {
+    long[] l = Arrays.copyOf(latencies, nlatencies);
+    long[] p = Arrays.copyOf(paints, npaints);
+    Arrays.sort(l);
+    Arrays.sort(p);
+    long total = 0;
+    for(int k = 0; k < p.length; k++) total += p[k];
+    SegmentStore lines = scribble.getDocument().snapshot();
+    return String.format(Locale.ROOT,
+        "%d input events in %.2f s (%s), %d paints;"
+        + " drawing %d points, checksum %08x%n"
+        + "  input to paint ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f"
+        + "  max %.2f  (%d events, %d never painted)%n"
+        + "  paint ms: p50 %.2f  p90 %.2f  p99 %.2f  max %.2f  mean %.2f",
+        events, elapsed / 1e9, realtime ? "real time" : "max speed",
+        p.length, lines.pointCount(), checksum(lines),
+        CollabLoad.pct(l, 0.5), CollabLoad.pct(l, 0.9), CollabLoad.pct(l, 0.99),
+        CollabLoad.pct(l, 0.999), l.length == 0 ? 0 : l[l.length - 1] / 1e6,
+        l.length, nwaiting,
+        CollabLoad.pct(p, 0.5), CollabLoad.pct(p, 0.9), CollabLoad.pct(p, 0.99),
+        p.length == 0 ? 0 : p[p.length - 1] / 1e6,
+        p.length == 0 ? 0 : total / 1e6 / p.length);
+  }
+
+  /** A CRC of the points of a drawing, to tell whether two runs agree. */
+  static long checksum(SegmentStore s) {
+    CRC32 crc = new CRC32();
+    byte[] b = new byte[13];
+    for(int i = 0; i < s.pointCount(); i++) {
+      int x = s.x(i), y = s.y(i), c = s.color(i).getRGB();
+      int w = Float.floatToIntBits(s.width(i));
+      b[0] = (byte) (x >> 24); b[1] = (byte) (x >> 16); b[2] = (byte) (x >> 8); b[3] = (byte) x;
+      b[4] = (byte) (y >> 24); b[5] = (byte) (y >> 16); b[6] = (byte) (y >> 8); b[7] = (byte) y;
+      b[8] = (byte) (c ^ w); b[9] = (byte) ((c ^ w) >> 8);
+      b[10] = (byte) ((c ^ w) >> 16); b[11] = (byte) ((c ^ w) >> 24);
+      b[12] = (byte) (s.isMove(i) ? 1 : 0);
+      crc.update(b, 0, b.length);
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Stands in for Swing's painting when there is no screen: repaints of
+   * the view are gathered, and painted into an image by a task on the
+   * event queue, as Swing does.
+   */
+  class Repaints extends RepaintManager {
+    Rectangle dirty = null;                // To paint, if not null.
+    BufferedImage image;
+
+    public void addDirtyRegion(JComponent c, int x, int y, int w, int h) {
+      if (c != scribble) { super.addDirtyRegion(c, x, y, w, h); return; }
+      Rectangle r = new Rectangle(x, y, w, h).intersection(
+          new Rectangle(0, 0, c.getWidth(), c.getHeight()));
+      if (r.isEmpty()) return;
+      if (dirty != null) { dirty.add(r); return; }
+      dirty = r;
+      EventQueue.invokeLater(new Runnable() {
+        public void run() { paintDirty(); }
+      });
+    }
+
+    void paintDirty() {
+      Rectangle r = dirty;
+      dirty = null;
+      if (r == null) return;
+      int w = scribble.getWidth(), h = scribble.getHeight();
+      if (image == null || image.getWidth() != w || image.getHeight() != h)
+        image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = image.createGraphics();
+      g.setClip(r);
+      g.setColor(scribble.getBackground() == null ? Scribble.bg
+                                                  : scribble.getBackground());
+      g.fillRect(r.x, r.y, r.width, r.height);
+      scribble.paint(g);
+      g.dispose();
+    }
+  }
+}